@@ -0,0 +1,69 @@
+package net.jzajic.graalvm.kadvisor;
+
+import java.io.ByteArrayInputStream;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.prometheus.client.Collector.MetricFamilySamples;
+
+/**
+ * Derivation of the container metrics from the merged exporter samples of one
+ * collection.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class ComputeBenchmark {
+
+	@Param({ "10", "100" })
+	int containers;
+
+	@Param({ "1000", "5000" })
+	int seriesPerContainer;
+
+	private HTTPMetricHandler handler;
+	private Map<String, MetricFamilySamples> samples;
+	private Set<String> tagNames;
+
+	@Setup
+	public void setUp() {
+		// computeMetrics neither scrapes nor looks at the registry
+		handler = new HTTPMetricHandler(null, null, false, Collections.emptyList(), new KadvisorMetrics());
+		PrometheusTextFormatParser parser = new PrometheusTextFormatParser();
+		byte[][] bodies = SyntheticMetrics.exporterBodies(containers, seriesPerContainer, 42);
+		samples = new HashMap<>();
+		for (int i = 0; i < containers; i++)
+			parser.collect(new ByteArrayInputStream(bodies[i]), samples, SyntheticMetrics.tags(i));
+		tagNames = SyntheticMetrics.tags(0).keySet();
+	}
+
+	@TearDown
+	public void tearDown() {
+		handler.stop();
+	}
+
+	@Benchmark
+	public Map<String, MetricFamilySamples> computeMetrics() {
+		return handler.computeMetrics(samples, tagNames);
+	}
+
+}
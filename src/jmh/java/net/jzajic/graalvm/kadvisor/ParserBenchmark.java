@@ -0,0 +1,125 @@
+package net.jzajic.graalvm.kadvisor;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.CharArrayWriter;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.google.common.collect.ImmutableSet;
+
+import io.prometheus.client.Collector.MetricFamilySamples;
+import net.jzajic.graalvm.kadvisor.PrometheusTextTokenizer.Line;
+
+/**
+ * Parsing of the exporter responses of all containers of one scrape, as done
+ * by the scraper in the default, filtered and pass-through modes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class ParserBenchmark {
+
+	/**
+	 * Families the exported container metrics are derived from.
+	 */
+	private static final Set<String> DERIVED_INPUTS = ImmutableSet.of("node_memory_MemTotal_bytes", "node_memory_MemFree_bytes",
+			"node_memory_Cached_bytes", "node_memory_Buffers_bytes", "node_cpu_seconds_total", "node_memory_Mapped_bytes");
+
+	@Param({ "10", "100" })
+	int containers;
+
+	@Param({ "1000", "5000" })
+	int seriesPerContainer;
+
+	private final PrometheusTextFormatParser parser = new PrometheusTextFormatParser();
+	private byte[][] bodies;
+	private Map<String, String>[] tags;
+	private LabelInterner.Table[] tables;
+	private byte[][] labelFragments;
+	private final Predicate<Line> derivedInputs = line -> DERIVED_INPUTS.contains(line.name());
+
+	@SuppressWarnings("unchecked")
+	@Setup
+	public void setUp() {
+		bodies = SyntheticMetrics.exporterBodies(containers, seriesPerContainer, 42);
+		tags = new Map[containers];
+		tables = new LabelInterner.Table[containers];
+		labelFragments = new byte[containers][];
+		for (int i = 0; i < containers; i++) {
+			tags[i] = SyntheticMetrics.tags(i);
+			tables[i] = new LabelInterner.Table(tags[i]);
+			labelFragments[i] = PrometheusTextFormatParser.labelFragment(tags[i]).getBytes();
+		}
+	}
+
+	@Benchmark
+	public void parse(Blackhole blackhole) {
+		for (byte[] body : bodies)
+			blackhole.consume(parser.parse(new ByteArrayInputStream(body)));
+	}
+
+	/**
+	 * Full collection with interning tables kept across scrapes.
+	 */
+	@Benchmark
+	public Map<String, MetricFamilySamples> collect() {
+		Map<String, MetricFamilySamples> output = new HashMap<>();
+		for (int i = 0; i < containers; i++) {
+			parser.collect(new ByteArrayInputStream(bodies[i]), output, tables[i]);
+			tables[i].endScrape();
+		}
+		return output;
+	}
+
+	/**
+	 * Collection of only the families the container metrics are derived from.
+	 */
+	@Benchmark
+	public Map<String, MetricFamilySamples> collectDerivedInputs() {
+		Map<String, MetricFamilySamples> output = new HashMap<>();
+		for (int i = 0; i < containers; i++) {
+			parser.collect(new ByteArrayInputStream(bodies[i]), output, tables[i], derivedInputs);
+			tables[i].endScrape();
+		}
+		return output;
+	}
+
+	@Benchmark
+	public CharArrayWriter enhance() {
+		CharArrayWriter writer = new CharArrayWriter();
+		for (int i = 0; i < containers; i++)
+			parser.enhance(new ByteArrayInputStream(bodies[i]), writer, tags[i]);
+		return writer;
+	}
+
+	@Benchmark
+	public ByteArrayOutputStream relabel() {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		Set<String> writtenFamilies = new HashSet<>();
+		for (int i = 0; i < containers; i++)
+			parser.relabel(new ByteArrayInputStream(bodies[i]), output, labelFragments[i], writtenFamilies);
+		return output;
+	}
+
+}
@@ -0,0 +1,105 @@
+package net.jzajic.graalvm.kadvisor;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.CharArrayWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import io.prometheus.client.Collector.MetricFamilySamples;
+
+/**
+ * Rendering and compression of the response of one collection, the merged
+ * samples of all containers are exported as they are.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class WriterBenchmark {
+
+	@Param({ "10", "100" })
+	int containers;
+
+	@Param({ "1000", "5000" })
+	int seriesPerContainer;
+
+	private final KadvisorMetrics metrics = new KadvisorMetrics();
+	private Collection<MetricFamilySamples> families;
+	private byte[] plainBody;
+	private double[] values;
+
+	@Setup
+	public void setUp() {
+		PrometheusTextFormatParser parser = new PrometheusTextFormatParser();
+		byte[][] bodies = SyntheticMetrics.exporterBodies(containers, seriesPerContainer, 42);
+		Map<String, MetricFamilySamples> merged = new HashMap<>();
+		List<Double> sampleValues = new ArrayList<>();
+		for (int i = 0; i < containers; i++)
+			parser.collect(new ByteArrayInputStream(bodies[i]), merged, SyntheticMetrics.tags(i));
+		families = merged.values();
+		families.forEach(family -> family.samples.forEach(sample -> sampleValues.add(sample.value)));
+		values = new double[Math.min(sampleValues.size(), 10000)];
+		Random random = new Random(42);
+		for (int i = 0; i < values.length; i++)
+			values[i] = sampleValues.get(random.nextInt(sampleValues.size()));
+		plainBody = new MetricSnapshot(families, 0, metrics).plainBody();
+	}
+
+	@Benchmark
+	public CharArrayWriter write004() throws IOException {
+		CharArrayWriter writer = new CharArrayWriter(plainBody.length);
+		PrometheusTextFormatParser.write004(writer, families.iterator());
+		return writer;
+	}
+
+	/**
+	 * Formatting of sample values picked from the payload.
+	 */
+	@Benchmark
+	public void doubleToGoString(Blackhole blackhole) {
+		for (double value : values)
+			blackhole.consume(PrometheusTextFormatParser.doubleToGoString(value));
+	}
+
+	@Benchmark
+	public byte[] gzip() throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream(plainBody.length / 4);
+		try (GZIPOutputStream os = new GZIPOutputStream(bos)) {
+			os.write(plainBody);
+		}
+		return bos.toByteArray();
+	}
+
+	/**
+	 * Rendering and compression of a fresh snapshot, as done by the collecting
+	 * loop after every collection.
+	 */
+	@Benchmark
+	public byte[] snapshot() {
+		return new MetricSnapshot(families, 0, metrics).gzipBody();
+	}
+
+}
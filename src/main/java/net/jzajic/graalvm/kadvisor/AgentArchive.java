@@ -0,0 +1,163 @@
+package net.jzajic.graalvm.kadvisor;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+
+import com.google.common.hash.Hashing;
+
+/**
+ * Agent files packed once into the tar archive uploaded to the containers,
+ * together with a hash identifying their content.
+ * <p>
+ * The archive holds the binary, the start script <code>kadvisor.sh</code>
+ * and, as its last entry, the hash in {@link #MARKER_PATH}. A container
+ * holding the same hash already has the complete agent and the upload can be
+ * skipped.
+ * <p>
+ * The same files can be extracted once into a directory shared with the
+ * containers through a volume, see {@link #extractTo(Path)}.
+ */
+class AgentArchive {
+
+	static final String SCRIPT_PATH = "/bin/kadvisor.sh";
+	static final String MARKER_PATH = "/bin/.kadvisor-agent";
+
+	private static final int BLOCK_SIZE = 512;
+
+	private final Path binary;
+	private final String script;
+	final String binaryName;
+	/**
+	 * Hex encoded SHA-256 of the binary and the start script.
+	 */
+	final String hash;
+	private final byte[] tar;
+
+	/**
+	 * @param script
+	 *          Start script deployed along with the binary.
+	 */
+	AgentArchive(Path binary, String script) throws IOException {
+		byte[] content = Files.readAllBytes(binary);
+		this.binary = binary;
+		this.script = script;
+		this.binaryName = binary.getFileName().toString();
+		this.hash = Hashing.sha256().newHasher()
+			.putBytes(content)
+				.putString(script, StandardCharsets.UTF_8)
+				.hash()
+				.toString();
+		byte[] scriptContent = script.getBytes(StandardCharsets.UTF_8);
+		long now = System.currentTimeMillis() / 1000;
+		ByteArrayOutputStream archive = new ByteArrayOutputStream(content.length + scriptContent.length + 8 * BLOCK_SIZE);
+		writeEntry(archive, binaryName, 0755, Files.getLastModifiedTime(binary).toMillis() / 1000, content);
+		writeEntry(archive, fileName(SCRIPT_PATH), 0755, now, scriptContent);
+		// extracted last, so it is only present with the complete agent
+		writeEntry(archive, fileName(MARKER_PATH), 0644, now, (hash + "\n").getBytes(StandardCharsets.US_ASCII));
+		// end of archive
+		archive.write(new byte[2 * BLOCK_SIZE]);
+		this.tar = archive.toByteArray();
+	}
+
+	/**
+	 * @return The archive to be extracted into <code>/bin</code>.
+	 */
+	InputStream stream() {
+		return new ByteArrayInputStream(tar);
+	}
+
+	int size() {
+		return tar.length;
+	}
+
+	/**
+	 * Places the agent files into the directory, unless it already holds the
+	 * same agent. Each file is written aside and moved into place, so agents
+	 * started from the directory meanwhile never see a partial file.
+	 * 
+	 * @return Whether the files were written.
+	 */
+	boolean extractTo(Path directory) throws IOException {
+		Path marker = directory.resolve(fileName(MARKER_PATH));
+		if (Files.exists(marker) && new String(Files.readAllBytes(marker), StandardCharsets.US_ASCII).trim().equals(hash))
+			return false;
+		Files.createDirectories(directory);
+		Path binaryCopy = Files.createTempFile(directory, ".kadvisor", null);
+		Files.copy(binary, binaryCopy, StandardCopyOption.REPLACE_EXISTING);
+		place(binaryCopy, directory.resolve(binaryName), "rwxr-xr-x");
+		place(Files.write(Files.createTempFile(directory, ".kadvisor", null), script.getBytes(StandardCharsets.UTF_8)),
+				directory.resolve(fileName(SCRIPT_PATH)), "rwxr-xr-x");
+		// last, as in the archive
+		place(Files.write(Files.createTempFile(directory, ".kadvisor", null), (hash + "\n").getBytes(StandardCharsets.US_ASCII)),
+				marker, "rw-r--r--");
+		return true;
+	}
+
+	private static void place(Path file, Path target, String permissions) throws IOException {
+		Files.setPosixFilePermissions(file, PosixFilePermissions.fromString(permissions));
+		Files.move(file, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	static String fileName(String path) {
+		return path.substring(path.lastIndexOf('/') + 1);
+	}
+
+	/**
+	 * Writes a regular file entry in the POSIX ustar format.
+	 */
+	static void writeEntry(ByteArrayOutputStream archive, String name, int mode, long mtime, byte[] content) {
+		byte[] header = new byte[BLOCK_SIZE];
+		byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+		if (nameBytes.length > 100)
+			throw new IllegalArgumentException("Tar entry name too long: " + name);
+		System.arraycopy(nameBytes, 0, header, 0, nameBytes.length);
+		octal(header, 100, 8, mode);
+		octal(header, 108, 8, 0);
+		octal(header, 116, 8, 0);
+		octal(header, 124, 12, content.length);
+		octal(header, 136, 12, mtime);
+		header[156] = '0';
+		ascii(header, 257, "ustar\0");
+		ascii(header, 263, "00");
+		ascii(header, 265, "root");
+		ascii(header, 297, "root");
+		// checksum is computed with its own field filled with spaces
+		for (int i = 148; i < 156; i++)
+			header[i] = ' ';
+		long checksum = 0;
+		for (byte b : header)
+			checksum += b & 0xff;
+		octal(header, 148, 7, checksum);
+		header[155] = ' ';
+		archive.write(header, 0, header.length);
+		archive.write(content, 0, content.length);
+		int padding = (BLOCK_SIZE - content.length % BLOCK_SIZE) % BLOCK_SIZE;
+		archive.write(new byte[padding], 0, padding);
+	}
+
+	/**
+	 * Zero padded octal number terminated by NUL, filling the field.
+	 */
+	private static void octal(byte[] header, int offset, int length, long value) {
+		String digits = Long.toOctalString(value);
+		if (digits.length() > length - 1)
+			throw new IllegalArgumentException("Value " + value + " does not fit into tar header field");
+		for (int i = 0; i < length - 1 - digits.length(); i++)
+			header[offset + i] = '0';
+		ascii(header, offset + length - 1 - digits.length(), digits);
+		header[offset + length - 1] = 0;
+	}
+
+	private static void ascii(byte[] header, int offset, String value) {
+		byte[] bytes = value.getBytes(StandardCharsets.US_ASCII);
+		System.arraycopy(bytes, 0, header, offset, bytes.length);
+	}
+
+}
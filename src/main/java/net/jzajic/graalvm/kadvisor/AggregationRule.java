@@ -0,0 +1,63 @@
+package net.jzajic.graalvm.kadvisor;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Aggregation of an exported metric applied before it is written, e.g.
+ * <code>container_cpu_usage_seconds_total:sum without(cpu)</code> or
+ * <code>container_cpu_usage_seconds_total:sum by(mode)</code>. The container
+ * tags are always kept, so series of different containers are never summed
+ * together. A plain <code>metric:sum</code> keeps only the container tags.
+ */
+public class AggregationRule {
+
+	private static final Pattern RULE = Pattern.compile("\\s*([a-zA-Z_:][a-zA-Z0-9_:]*)\\s*:\\s*sum\\s*(?:(by|without)\\s*\\(([^)]*)\\))?\\s*");
+
+	public final String metric;
+	private final boolean by;
+	private final String[] labels;
+
+	private AggregationRule(String metric, boolean by, String[] labels) {
+		this.metric = metric;
+		this.by = by;
+		this.labels = labels;
+	}
+
+	public static AggregationRule parse(String rule) {
+		Matcher matcher = RULE.matcher(rule);
+		if (!matcher.matches())
+			throw new IllegalArgumentException("Invalid aggregation rule '" + rule + "', expected 'metric:sum [by|without](label,...)'");
+		String grouping = matcher.group(2);
+		String labelList = matcher.group(3);
+		String[] labels = labelList == null || labelList.trim().isEmpty() ? new String[0] : labelList.trim().split("\\s*,\\s*");
+		return new AggregationRule(matcher.group(1), grouping == null || grouping.equals("by"), labels);
+	}
+
+	/**
+	 * @param tagNames
+	 *          Names of the container tags, kept by every rule.
+	 */
+	SeriesVector apply(SeriesVector vector, Set<String> tagNames) {
+		if (by) {
+			Set<String> kept = new LinkedHashSet<>(tagNames);
+			for (String label : labels)
+				kept.add(label);
+			return vector.sumBy(vector.name, kept.toArray(new String[kept.size()]));
+		}
+		Set<String> dropped = new LinkedHashSet<>();
+		for (String label : labels) {
+			if (!tagNames.contains(label))
+				dropped.add(label);
+		}
+		return vector.sumWithout(vector.name, dropped.toArray(new String[dropped.size()]));
+	}
+
+	@Override
+	public String toString() {
+		return metric + ":sum " + (by ? "by" : "without") + "(" + String.join(",", labels) + ")";
+	}
+
+}
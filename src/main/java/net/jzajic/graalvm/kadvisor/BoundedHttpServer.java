@@ -0,0 +1,459 @@
+package net.jzajic.graalvm.kadvisor;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import rawhttp.core.HttpVersion;
+import rawhttp.core.RawHttp;
+import rawhttp.core.RawHttpHeaders;
+import rawhttp.core.RawHttpRequest;
+import rawhttp.core.RawHttpResponse;
+import rawhttp.core.body.StringBody;
+import rawhttp.core.server.Router;
+
+/**
+ * HTTP/1.1 server with a fixed number of worker threads.
+ * <p>
+ * A single selector thread accepts connections and watches the new and the
+ * idle keep-alive ones, a worker is only taken once a request arrives and
+ * while it is read and answered. A connection stays registered with the
+ * selector for its whole life, it is just not watched while a worker serves
+ * it. Requests which find all workers busy and the queue full are
+ * answered with 503 right away instead of piling up threads. Requests and
+ * responses are still parsed and written by rawhttp, on non-blocking channels
+ * with read and write timeouts.
+ */
+public class BoundedHttpServer {
+
+	private static final byte[] SERVICE_UNAVAILABLE = ("HTTP/1.1 503 Service Unavailable\r\n" +
+			"Content-Type: text/plain\r\n" +
+			"Content-Length: 20\r\n" +
+			"Retry-After: 1\r\n" +
+			"Connection: close\r\n" +
+			"\r\n" +
+			"Service Unavailable\n").getBytes(StandardCharsets.US_ASCII);
+
+	private final RawHttp http;
+	private final int port;
+	private final long keepAliveNanos;
+	private final int ioTimeout;
+	private final long ioTimeoutNanos;
+	private final ThreadPoolExecutor workers;
+	private final Queue<Connection> idleConnections = new ConcurrentLinkedQueue<>();
+	private final ThreadLocal<Selector> workerSelector = new ThreadLocal<>();
+
+	private volatile boolean running;
+	private Selector selector;
+	private ServerSocketChannel serverChannel;
+	private Router router;
+
+	/**
+	 * @param threads
+	 *          Number of worker threads.
+	 * @param queueSize
+	 *          Number of requests waiting for a worker, further ones get 503.
+	 * @param keepAlive
+	 *          Milliseconds an idle connection is kept open.
+	 * @param ioTimeout
+	 *          Milliseconds a worker waits for the client to send or accept
+	 *          data.
+	 */
+	public BoundedHttpServer(RawHttp http, int port, int threads, int queueSize, long keepAlive, int ioTimeout) {
+		super();
+		this.http = http;
+		this.port = port;
+		this.keepAliveNanos = TimeUnit.MILLISECONDS.toNanos(keepAlive);
+		this.ioTimeout = ioTimeout;
+		this.ioTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(ioTimeout);
+		this.workers = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(queueSize),
+				new ThreadFactoryBuilder()
+					.setNameFormat("kadvisor-http-%d")
+						.setDaemon(true)
+						.build());
+	}
+
+	public void start(Router router) throws IOException {
+		this.router = router;
+		this.selector = Selector.open();
+		this.serverChannel = ServerSocketChannel.open();
+		serverChannel.bind(new InetSocketAddress(port), 128);
+		serverChannel.configureBlocking(false);
+		serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+		running = true;
+		Thread selectorThread = new Thread(this::select, "kadvisor-http-selector");
+		selectorThread.setDaemon(true);
+		selectorThread.start();
+	}
+
+	public void stop() {
+		running = false;
+		workers.shutdownNow();
+		try {
+			selector.close();
+			serverChannel.close();
+		} catch (IOException e) {
+			// nothing to do
+		}
+	}
+
+	private void select() {
+		while (running) {
+			try {
+				selectOnce();
+			} catch (ClosedSelectorException e) {
+				// stopped
+				return;
+			} catch (IOException | RuntimeException e) {
+				// the other connections are still served
+				System.err.println("HTTP selector failed: " + e);
+			}
+		}
+	}
+
+	private void selectOnce() throws IOException {
+		selector.select(1000);
+		Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+		while (keys.hasNext()) {
+			SelectionKey key = keys.next();
+			keys.remove();
+			try {
+				if (!key.isValid())
+					continue;
+				if (key.isAcceptable()) {
+					accept();
+				} else if (key.isReadable()) {
+					// not watched while the worker serves it
+					key.interestOps(0);
+					dispatch((Connection) key.attachment());
+				}
+			} catch (CancelledKeyException e) {
+				// closed meanwhile
+			}
+		}
+		Connection connection;
+		while ((connection = idleConnections.poll()) != null)
+			watch(connection, keepAliveNanos);
+		closeExpired();
+	}
+
+	private void accept() {
+		while (true) {
+			SocketChannel channel;
+			try {
+				channel = serverChannel.accept();
+			} catch (IOException e) {
+				System.err.println("Accepting HTTP connection failed: " + e);
+				// e.g. out of file descriptors, give the workers time to close some
+				pause();
+				return;
+			}
+			if (channel == null)
+				return;
+			Connection connection = new Connection(channel);
+			try {
+				channel.configureBlocking(false);
+				channel.socket().setTcpNoDelay(true);
+				// dispatched once the request starts to arrive
+				connection.key = channel.register(selector, 0, connection);
+				watch(connection, ioTimeoutNanos);
+			} catch (IOException e) {
+				connection.close();
+			}
+		}
+	}
+
+	private static void pause() {
+		try {
+			Thread.sleep(100);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Watches the connection for the next request, closing it when none comes
+	 * within the timeout. Selector thread only.
+	 */
+	private void watch(Connection connection, long timeoutNanos) {
+		connection.deadline = System.nanoTime() + timeoutNanos;
+		try {
+			connection.key.interestOps(SelectionKey.OP_READ);
+		} catch (CancelledKeyException e) {
+			connection.close();
+		}
+	}
+
+	private void closeExpired() {
+		long now = System.nanoTime();
+		for (SelectionKey key : selector.keys()) {
+			Object attachment = key.attachment();
+			// connections served by a worker are not watched
+			if (attachment instanceof Connection && key.isValid() && key.interestOps() != 0 && now - ((Connection) attachment).deadline > 0)
+				((Connection) attachment).close();
+		}
+	}
+
+	private void dispatch(Connection connection) {
+		try {
+			workers.execute(() -> serve(connection));
+		} catch (RejectedExecutionException e) {
+			reject(connection);
+		}
+	}
+
+	/**
+	 * Answers 503 without reading the request, best effort only, the selector
+	 * thread must not block.
+	 */
+	private void reject(Connection connection) {
+		try {
+			ByteBuffer drain = ByteBuffer.allocate(4096);
+			while (connection.channel.read(drain) > 0)
+				drain.clear();
+			connection.channel.write(ByteBuffer.wrap(SERVICE_UNAVAILABLE));
+			connection.channel.shutdownOutput();
+		} catch (IOException e) {
+			// client gone
+		}
+		connection.close();
+	}
+
+	private void serve(Connection connection) {
+		boolean keepAlive = false;
+		RawHttpResponse<?> response = null;
+		try {
+			if (!connection.fill()) {
+				// idle connection closed by the client
+				connection.close();
+				return;
+			}
+			RawHttpRequest request = http.parseRequest(connection.input()).eagerly();
+			Optional<RawHttpResponse<?>> routed = router.route(request);
+			response = routed.isPresent() ? routed.get() : http.parseResponse("HTTP/1.1 404 Not Found\n" +
+					"Content-Type: text/plain").withBody(new StringBody("Content was not found"));
+			keepAlive = isKeepAlive(request, response);
+			if (!keepAlive)
+				response = response.withHeaders(RawHttpHeaders.newBuilder().with("Connection", "close").build());
+			OutputStream output = new BufferedOutputStream(connection.output(), 16 * 1024);
+			response.writeTo(output);
+			output.flush();
+		} catch (IOException | RuntimeException e) {
+			if (!connection.isClosedByClient(e))
+				System.err.println("HTTP request from " + connection.remoteAddress() + " failed: " + e);
+			keepAlive = false;
+		} finally {
+			connection.release();
+			closeBody(response);
+		}
+		if (keepAlive && running) {
+			if (connection.buffered()) {
+				// pipelined request already read
+				dispatch(connection);
+			} else {
+				idleConnections.add(connection);
+				selector.wakeup();
+			}
+		} else {
+			connection.close();
+		}
+	}
+
+	/**
+	 * Releases a streamed body, its producer stops when the client went away.
+	 */
+	private static void closeBody(RawHttpResponse<?> response) {
+		if (response == null)
+			return;
+		response.getBody().ifPresent(body -> {
+			try {
+				body.close();
+			} catch (IOException e) {
+				// nothing left to release
+			}
+		});
+	}
+
+	private static boolean isKeepAlive(RawHttpRequest request, RawHttpResponse<?> response) {
+		if (request.getStartLine().getHttpVersion() != HttpVersion.HTTP_1_1 || hasHeaderValue(request.getHeaders().get("Connection"), "close"))
+			return false;
+		if (response.getStartLine().getHttpVersion() != HttpVersion.HTTP_1_1 || hasHeaderValue(response.getHeaders().get("Connection"), "close"))
+			return false;
+		int status = response.getStatusCode();
+		List<String> length = response.getHeaders().get("Content-Length");
+		return status == 304 || status == 204 || (length != null && !length.isEmpty())
+				|| hasHeaderValue(response.getHeaders().get("Transfer-Encoding"), "chunked");
+	}
+
+	private static boolean hasHeaderValue(List<String> headers, String value) {
+		if (headers == null)
+			return false;
+		for (String header : headers) {
+			for (String token : header.split(",")) {
+				if (token.trim().equalsIgnoreCase(value))
+					return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Waits until the channel is ready for the operation on the selector of the
+	 * current worker.
+	 */
+	private void await(SocketChannel channel, int operation) throws IOException {
+		Selector selector = workerSelector.get();
+		if (selector == null) {
+			selector = Selector.open();
+			workerSelector.set(selector);
+		}
+		SelectionKey key = channel.keyFor(selector);
+		if (key == null) {
+			key = channel.register(selector, operation);
+		} else {
+			key.interestOps(operation);
+		}
+		int ready = selector.select(ioTimeout);
+		selector.selectedKeys().clear();
+		if (ready == 0)
+			throw new SocketTimeoutException("No data from client within " + ioTimeout + " ms");
+	}
+
+	/**
+	 * Client connection. Bytes read ahead of the current request stay in its
+	 * buffer for the next one.
+	 */
+	private class Connection {
+		final SocketChannel channel;
+		final ByteBuffer readBuffer = ByteBuffer.allocate(8192);
+		/**
+		 * Key with the server selector, watched for the next request only while
+		 * no worker serves the connection.
+		 */
+		SelectionKey key;
+		/**
+		 * Time the watched connection is closed unless a request arrives.
+		 */
+		long deadline;
+
+		Connection(SocketChannel channel) {
+			this.channel = channel;
+			readBuffer.flip();
+		}
+
+		boolean buffered() {
+			return readBuffer.hasRemaining();
+		}
+
+		InputStream input() {
+			return new InputStream() {
+				@Override
+				public int read() throws IOException {
+					if (!fill())
+						return -1;
+					return readBuffer.get() & 0xff;
+				}
+
+				@Override
+				public int read(byte[] b, int off, int len) throws IOException {
+					if (len == 0)
+						return 0;
+					if (!fill())
+						return -1;
+					int count = Math.min(len, readBuffer.remaining());
+					readBuffer.get(b, off, count);
+					return count;
+				}
+			};
+		}
+
+		boolean fill() throws IOException {
+			while (!readBuffer.hasRemaining()) {
+				readBuffer.clear();
+				int read = channel.read(readBuffer);
+				readBuffer.flip();
+				if (read < 0)
+					return false;
+				if (read == 0)
+					await(channel, SelectionKey.OP_READ);
+			}
+			return true;
+		}
+
+		OutputStream output() {
+			return new OutputStream() {
+				@Override
+				public void write(int b) throws IOException {
+					write(new byte[] { (byte) b }, 0, 1);
+				}
+
+				@Override
+				public void write(byte[] b, int off, int len) throws IOException {
+					ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+					while (buffer.hasRemaining()) {
+						if (channel.write(buffer) == 0)
+							await(channel, SelectionKey.OP_WRITE);
+					}
+				}
+			};
+		}
+
+		/**
+		 * Removes the channel from the selector of the current worker, so it can
+		 * be registered with the server selector again.
+		 */
+		void release() {
+			Selector selector = workerSelector.get();
+			if (selector != null) {
+				SelectionKey key = channel.keyFor(selector);
+				if (key != null) {
+					key.cancel();
+					try {
+						selector.selectNow();
+					} catch (IOException e) {
+						// nothing to do
+					}
+				}
+			}
+		}
+
+		boolean isClosedByClient(Exception e) {
+			return !channel.isOpen() || e instanceof java.io.EOFException;
+		}
+
+		String remoteAddress() {
+			return String.valueOf(channel.socket().getRemoteSocketAddress());
+		}
+
+		void close() {
+			try {
+				channel.close();
+			} catch (IOException e) {
+				// nothing to do
+			}
+		}
+	}
+
+}
@@ -2,101 +2,300 @@ package net.jzajic.graalvm.kadvisor;
 
 import java.io.IOException;
 import java.nio.file.Path;
-import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
-import com.google.common.base.Joiner;
 import com.google.common.base.Strings;
 import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 import net.jzajic.graalvm.client.DockerClient;
 import net.jzajic.graalvm.client.DockerClient.ExecCreateParam;
 import net.jzajic.graalvm.client.DockerClient.ExecStartParameter;
 import net.jzajic.graalvm.client.exceptions.DockerException;
 import net.jzajic.graalvm.client.messages.ContainerInfo;
+import net.jzajic.graalvm.client.messages.ContainerMount;
 import net.jzajic.graalvm.client.messages.ExecCreation;
 import net.jzajic.graalvm.client.messages.ExecState;
 import net.jzajic.graalvm.kadvisor.WatchedContainerRegistry.ContainerListener;
 
+/**
+ * Deploys and starts the exporter agent in every added container.
+ * <p>
+ * Deployments run on a bounded pool, so a host restart with many containers
+ * instruments them in parallel without flooding the Docker daemon. A failed
+ * deployment is retried with exponential backoff until the container is
+ * removed or the attempts are exhausted.
+ * <p>
+ * The agent archive with the binary and its start script is built once and
+ * extracted by a single upload, the agent is then started by a single exec.
+ * A container already holding the same agent, e.g. after a restart, only
+ * gets the agent started again.
+ * <p>
+ * Containers labelled with {@link #MOUNT_LABEL} get nothing uploaded. The
+ * label holds the path where the agent volume is mounted in the container,
+ * the agent is started from there by a single exec. The label is only
+ * followed with an agent volume configured, and when the inspected container
+ * mounts exactly that volume at the labelled path without
+ * <code>noexec</code>. Otherwise the agent is uploaded. The volume is filled
+ * once with the agent files, see {@link AgentArchive#extractTo(Path)}.
+ */
 public class ContainerAgentManager implements ContainerListener {
 
+	public static final String MOUNT_LABEL = "kadvisor.agent.mount";
 	public static final Pattern ARGS_PATTERN = Pattern.compile("([^\\s\"]+|\"[^\"]*\")");
+	private static final long MAX_RETRY_BACKOFF = 60000;
 	
 	private final DockerClient dockerClient;
 	private final Path agentBinaryPath;
 	private final String exporterParams;
 	private final Map<String, ExecInfo> execMap = new ConcurrentHashMap<>();
+	/**
+	 * Deployments not finished yet, by container id.
+	 */
+	private final Map<String, Deployment> deployments = new ConcurrentHashMap<>();
+	private final ScheduledExecutorService deployer;
+	private final int maxAttempts;
+	private final long retryBackoff;
+	private final KadvisorMetrics metrics;
+	private final AgentArchive archive;
+	/**
+	 * Host paths and volume names the agent volume is known by in the mounts
+	 * of the containers, empty without an agent volume.
+	 */
+	private final Set<String> volumeSources = new HashSet<>();
 	
-	public ContainerAgentManager(DockerClient dockerClient, Path agentFolderPath, String exporterParams) {
+	/**
+	 * @param agentVolume
+	 *          Directory the agent files are placed into for the containers
+	 *          mounting it, or <code>null</code>.
+	 * @param agentVolumeSource
+	 *          Host path or volume name of the agent volume as seen in the
+	 *          container mounts, when it differs from <code>agentVolume</code>,
+	 *          e.g. with kadvisor itself running in a container. May be
+	 *          <code>null</code>.
+	 * @param threads
+	 *          Number of agents deployed in parallel.
+	 * @param maxAttempts
+	 *          Attempts to deploy the agent into a single container.
+	 * @param retryBackoff
+	 *          Milliseconds before the first retry, doubled with every further
+	 *          one.
+	 */
+	public ContainerAgentManager(DockerClient dockerClient, Path agentFolderPath, Path agentVolume, String agentVolumeSource, String exporterParams, int threads, int maxAttempts,
+			long retryBackoff, KadvisorMetrics metrics) throws IOException {
 		super();
 		this.dockerClient = dockerClient;
 		this.agentBinaryPath = agentFolderPath;
 		this.exporterParams = exporterParams;
+		String binaryName = agentBinaryPath.getFileName().toString();
+		String kadvisorScript = KadvisorSh.KADVISOR_SH.replace("${NODE_EXPORTER_NAME}", binaryName);
+		this.archive = new AgentArchive(agentBinaryPath, kadvisorScript);
+		if (agentVolume != null) {
+			if (archive.extractTo(agentVolume))
+				System.out.println("Placed agent "+archive.hash+" into volume "+agentVolume);
+			else
+				System.out.println("Agent "+archive.hash+" already present in volume "+agentVolume);
+			volumeSources.add(trimSlashes(agentVolume.toAbsolutePath().toString()));
+			if (!Strings.isNullOrEmpty(agentVolumeSource))
+				volumeSources.add(trimSlashes(agentVolumeSource));
+		}
+		this.maxAttempts = maxAttempts;
+		this.retryBackoff = retryBackoff;
+		this.metrics = metrics;
+		this.deployer = Executors.newScheduledThreadPool(threads, new ThreadFactoryBuilder()
+				.setNameFormat("kadvisor-agent-%d")
+					.setDaemon(true)
+					.build());
 	}
 	
 	@Override
 	public void added(String ipAddress, ContainerInfo info) {
+		long queued = System.nanoTime();
+		Deployment deployment = new Deployment();
+		deployments.compute(info.id, (id, previous) -> {
+			// e.g. the container restarted, never two deployments into one container
+			if (previous != null)
+				previous.cancel();
+			deployment.future = deployer.submit(() -> deploy(info, deployment, 1, queued));
+			return deployment;
+		});
+	}
+	
+	private void deploy(ContainerInfo info, Deployment deployment, int attempt, long queued) {
 		try {
-			dockerClient.copyToContainer(agentBinaryPath, info.id, "/bin");
-			prepareEnv(info.id, agentBinaryPath.getFileName().toString());
-			List<String> cmd = Lists.newArrayList("/bin/kadvisor.sh");
-			int paramsCount = 0;
-			if(!Strings.isNullOrEmpty(exporterParams)) {
-				Matcher matcher = ARGS_PATTERN.matcher(exporterParams);
-				while (matcher.find()) {
-					String group = matcher.group(1);
-					cmd.add(group);
-					paramsCount++;
+			start(info);
+			deployments.remove(info.id, deployment);
+			long latency = System.nanoTime() - queued;
+			metrics.agentDeployDuration.observeNanos(latency);
+			metrics.agentDeployments.increment();
+			System.out.println("Deployed agent into container "+info.id+" in "+TimeUnit.NANOSECONDS.toMillis(latency)+" ms after "+attempt+" attempt(s)");
+		} catch (IOException | RuntimeException e) {
+			if (Thread.currentThread().isInterrupted())
+				return;
+			if (attempt >= maxAttempts) {
+				deployments.remove(info.id, deployment);
+				metrics.agentDeployFailures.increment();
+				System.err.println("Giving up deploying agent into container "+info.id+" after "+attempt+" attempts");
+				e.printStackTrace();
+				return;
+			}
+			long backoff = Math.min(retryBackoff << (attempt - 1), MAX_RETRY_BACKOFF);
+			System.err.println("Deploying agent into container "+info.id+" failed, retrying in "+backoff+" ms: "+e);
+			metrics.agentDeployRetries.increment();
+			// rescheduled only while neither removed nor replaced
+			deployments.computeIfPresent(info.id, (id, current) -> {
+				if (current == deployment)
+					deployment.future = deployer.schedule(() -> deploy(info, deployment, attempt + 1, queued), backoff, TimeUnit.MILLISECONDS);
+				return current;
+			});
+		}
+	}
+	
+	private void start(ContainerInfo info) throws DockerException, IOException {
+		String script;
+		String mount = mountPath(info);
+		if (mount != null) {
+			script = mount + "/" + AgentArchive.fileName(AgentArchive.SCRIPT_PATH);
+			metrics.agentMountedStarts.increment();
+		} else {
+			if (isDeployed(info.id)) {
+				metrics.agentCopiesSkipped.increment();
+				System.out.println("Agent "+archive.hash+" already present in container "+info.id);
+			} else {
+				dockerClient.copyToContainer(archive.stream(), info.id, "/bin");
+			}
+			script = AgentArchive.SCRIPT_PATH;
+		}
+		List<String> cmd = Lists.newArrayList(script);
+		int paramsCount = 0;
+		if(!Strings.isNullOrEmpty(exporterParams)) {
+			Matcher matcher = ARGS_PATTERN.matcher(exporterParams);
+			while (matcher.find()) {
+				String group = matcher.group(1);
+				cmd.add(group);
+				paramsCount++;
+			}
+		}
+		ExecCreation execCreate = dockerClient.execCreate(info.id, cmd.toArray(new String[] {}));
+		ExecInfo execInfo = new ExecInfo();
+		execInfo.execCreate = execCreate;
+		execInfo.info = info;
+		execMap.put(info.id, execInfo);
+		dockerClient.execStart(execCreate.id, ExecStartParameter.DETACH);	
+		System.out.println("Started agent "+script+" in container "+info.id+" (execution ID "+execCreate.id+") with "+paramsCount+" params");
+	}
+	
+	/**
+	 * @return Absolute path of the agent volume in the container, or
+	 *         <code>null</code> when the agent is to be uploaded.
+	 */
+	private String mountPath(ContainerInfo info) {
+		String mount = info.config.labels == null ? null : info.config.labels.get(MOUNT_LABEL);
+		if (Strings.isNullOrEmpty(mount))
+			return null;
+		if (volumeSources.isEmpty()) {
+			System.err.println("Ignoring "+MOUNT_LABEL+" of container "+info.id+" without an agent volume, uploading the agent");
+			return null;
+		}
+		if (!mount.startsWith("/")) {
+			System.err.println("Ignoring relative "+MOUNT_LABEL+" path "+mount+" of container "+info.id+", uploading the agent");
+			return null;
+		}
+		mount = trimSlashes(mount);
+		if (!isAgentVolumeMount(info, mount)) {
+			System.err.println("Container "+info.id+" does not mount the agent volume executable at its "+MOUNT_LABEL+" path "+mount+", uploading the agent");
+			return null;
+		}
+		return mount;
+	}
+	
+	/**
+	 * @return Whether the agent volume is the mount of the container at the
+	 *         path, not mounted <code>noexec</code>. The agent files are in the
+	 *         root of the volume, so a mount of a parent directory does not
+	 *         count.
+	 */
+	private boolean isAgentVolumeMount(ContainerInfo info, String path) {
+		if (info.mounts == null)
+			return false;
+		for (ContainerMount mount : info.mounts) {
+			if (mount.destination == null || !trimSlashes(mount.destination).equals(path))
+				continue;
+			boolean agentVolume = (mount.source != null && volumeSources.contains(trimSlashes(mount.source)))
+					|| (mount.name != null && volumeSources.contains(mount.name));
+			if (!agentVolume)
+				return false;
+			if (mount.mode != null) {
+				for (String option : mount.mode.split(",")) {
+					if (option.trim().equals("noexec"))
+						return false;
 				}
 			}
-			ExecCreation execCreate = dockerClient.execCreate(info.id, cmd.toArray(new String[] {}));
-			ExecInfo execInfo = new ExecInfo();
-			execInfo.execCreate = execCreate;
-			execInfo.info = info;
-			execMap.put(info.id, execInfo);
-			dockerClient.execStart(execCreate.id, ExecStartParameter.DETACH);	
-			System.out.println("Started agent /bin/"+agentBinaryPath.getFileName().toString()+" in container "+info.id+" (execution ID "+execCreate.id+") with "+paramsCount+" params");
-		} catch (DockerException | IOException e) {
-			e.printStackTrace();
-		}		
+			return true;
+		}
+		return false;
+	}
+	
+	private static String trimSlashes(String path) {
+		while (path.length() > 1 && path.endsWith("/"))
+			path = path.substring(0, path.length() - 1);
+		return path;
 	}
 	
-	private void prepareEnv(String id, String binaryName) throws IOException {
-		String kadvisorCommand = KadvisorSh.KADVISOR_SH;
-		kadvisorCommand = kadvisorCommand.replace("${NODE_EXPORTER_PATH}", "/bin/"+binaryName);
-		kadvisorCommand = kadvisorCommand.replace("${NODE_EXPORTER_NAME}", binaryName);
-		List<String> commandLines = new ArrayList<>();
-		commandLines.add("PATH=\"/bin:/usr/bin\"");
-		commandLines.add("chmod 755 /bin/"+binaryName);
-		String[] kadvisorCommandLines = kadvisorCommand.split("\\r?\\n");
-		boolean firstLine = true;
-		for(String kadvisorCommandLine : kadvisorCommandLines) {
-			commandLines.add("echo "+kadvisorCommandLine+" "+(firstLine ? '>' : ">>")+" /bin/kadvisor.sh");
-			firstLine = false;
+	/**
+	 * @return Whether the marker in the container holds the hash of the
+	 *         current agent. A failed check, e.g. in an image without
+	 *         <code>cat</code>, only means the agent is uploaded.
+	 */
+	private boolean isDeployed(String id) {
+		try {
+			ExecCreation execCreate = dockerClient.execCreate(id, new String[] {"cat", AgentArchive.MARKER_PATH}, ExecCreateParam.attachStdout(), ExecCreateParam.attachStderr());
+			String marker = dockerClient.execStart(execCreate.id).readFully();
+			return marker != null && marker.trim().equals(archive.hash);
+		} catch (RuntimeException e) {
+			System.err.println("Checking agent in container "+id+" failed, uploading it: "+e);
+			return false;
 		}
-		commandLines.add("chmod 755 /bin/kadvisor.sh");
-		ExecCreation execCreate = dockerClient.execCreate(id, new String[] {"/bin/sh", "-c", Joiner.on(';').join(commandLines)}, ExecCreateParam.attachStdin(), ExecCreateParam.attachStderr());
-		String readFully = dockerClient.execStart(execCreate.id).readFully();
-		System.out.println("Executed prepareEnv /bin/kadvisor.sh in container "+id+":\n"+readFully);
 	}
 	
 	@Override
 	public void removed(String ipAddress, ContainerInfo info) {
+		Deployment deployment = deployments.remove(info.id);
+		if(deployment != null)
+			deployment.cancel();
 		if(execMap.containsKey(info.id)) {
 			execMap.remove(info.id);			
 		}		
 	}
 	
+	/**
+	 * Deployment into one container, its future is replaced by every retry.
+	 */
+	private static class Deployment {
+		volatile Future<?> future;
+		
+		void cancel() {
+			future.cancel(true);
+		}
+	}
+	
 	private static class ExecInfo {
 		ContainerInfo info;
 		ExecCreation execCreate;
 	}
 	
 	public void stop() {
+		deployer.shutdownNow();
 		execMap.forEach((key, val) -> {
 			try {
 				ExecState execState = this.dockerClient.execInspect(val.execCreate.id);
@@ -0,0 +1,82 @@
+package net.jzajic.graalvm.kadvisor;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Remembers the last value of every series of the tracked counters between
+ * collections, so increases since the previous collection can be derived
+ * without querying the history in Prometheus.
+ * <p>
+ * Series are matched by their label sets, a series which disappears from an
+ * updating collection is forgotten. A decreased value is taken as a counter
+ * reset and yields no delta for that collection. Collections of a subset of
+ * the containers must not update, they would make the others forget their
+ * series and shorten the interval of the next full collection.
+ */
+class CounterDeltas {
+
+	private final Map<String, Counter> previous = new HashMap<>();
+
+	/**
+	 * @return Increase of every series of the counter since the previous call
+	 *         for a counter of the same name. Series seen for the first time
+	 *         are left out.
+	 */
+	SeriesVector delta(SeriesVector counter, String newName) {
+		return delta(counter, newName, true);
+	}
+
+	/**
+	 * @param update
+	 *          Whether the values become the previous ones of the next call,
+	 *          otherwise the increase is only computed.
+	 */
+	synchronized SeriesVector delta(SeriesVector counter, String newName, boolean update) {
+		SeriesIndex index = counter.index();
+		Counter last = previous.get(counter.name);
+		if (last == null) {
+			if (!update)
+				return SeriesVector.empty(newName, index);
+			last = new Counter();
+			previous.put(counter.name, last);
+		}
+		SeriesVector delta = SeriesVector.empty(newName, index);
+		Counter values = last;
+		long generation = update ? ++values.generation : 0;
+		int[] seen = new int[1];
+		counter.forEach((id, value) -> {
+			SeriesIndex.LabelSet labels = index.labels(id);
+			LastValue lastValue = values.series.get(labels);
+			if (lastValue != null && value >= lastValue.value)
+				delta.set(id, value - lastValue.value);
+			if (update) {
+				if (lastValue == null) {
+					lastValue = new LastValue();
+					values.series.put(labels, lastValue);
+				}
+				lastValue.value = value;
+				lastValue.generation = generation;
+				seen[0]++;
+			}
+		});
+		// only when some series disappeared
+		if (update && seen[0] < values.series.size())
+			values.series.values().removeIf(lastValue -> lastValue.generation != generation);
+		return delta;
+	}
+
+	private static class Counter {
+		final Map<SeriesIndex.LabelSet, LastValue> series = new HashMap<>();
+		long generation;
+	}
+
+	/**
+	 * Updated in place, so a collection allocates only for new series.
+	 */
+	private static class LastValue {
+		double value;
+		long generation;
+	}
+
+}
@@ -0,0 +1,142 @@
+package net.jzajic.graalvm.kadvisor;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Limits of what a single exporter may return in one scrape. They are checked
+ * while the body is streamed, so a misbehaving exporter is cut off before it
+ * can exhaust the memory of kadvisor. Zero disables a limit.
+ * <p>
+ * Exceeding a limit truncates the contribution of the endpoint to the
+ * complete lines, respectively series, read until then.
+ */
+public class EndpointLimits {
+
+	public static final String SERIES = "series";
+	public static final String BODY_BYTES = "body_bytes";
+	public static final String LINE_LENGTH = "line_length";
+
+	public static final EndpointLimits NONE = new EndpointLimits(0, 0, 0);
+
+	final int maxSeries;
+	final long maxBodyBytes;
+	final int maxLineLength;
+
+	/**
+	 * @param maxSeries
+	 *          Maximum number of samples of an endpoint.
+	 * @param maxBodyBytes
+	 *          Maximum size of the decoded response body.
+	 * @param maxLineLength
+	 *          Maximum length of a single exposition line in bytes.
+	 */
+	public EndpointLimits(int maxSeries, long maxBodyBytes, int maxLineLength) {
+		super();
+		this.maxSeries = maxSeries;
+		this.maxBodyBytes = maxBodyBytes;
+		this.maxLineLength = maxLineLength;
+	}
+
+	/**
+	 * @return Body failing with {@link LimitExceededException} once more than
+	 *         the allowed number of bytes is read.
+	 */
+	InputStream limitBody(InputStream body) {
+		if (maxBodyBytes <= 0)
+			return body;
+		return new FilterInputStream(body) {
+			private long remaining = maxBodyBytes;
+
+			@Override
+			public int read() throws IOException {
+				byte[] b = new byte[1];
+				return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				if (remaining == 0) {
+					if (in.read() < 0)
+						return -1;
+					throw new LimitExceededException(BODY_BYTES, "Response body exceeds " + maxBodyBytes + " bytes");
+				}
+				int read = in.read(b, off, (int) Math.min(len, remaining));
+				if (read > 0)
+					remaining -= read;
+				return read;
+			}
+		};
+	}
+
+	/**
+	 * Reads the whole body into memory. A body over the limit is truncated
+	 * after its last complete line and reported to the listener.
+	 */
+	InputStream readBody(InputStream body, LimitListener listener) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		long remaining = maxBodyBytes > 0 ? maxBodyBytes : Long.MAX_VALUE;
+		int read;
+		while ((read = body.read(buffer, 0, (int) Math.min(buffer.length, remaining))) > 0) {
+			bytes.write(buffer, 0, read);
+			remaining -= read;
+			if (remaining == 0) {
+				if (body.read() >= 0) {
+					listener.exceeded(new LimitExceededException(BODY_BYTES, "Response body exceeds " + maxBodyBytes + " bytes"));
+					byte[] truncated = bytes.toByteArray();
+					int end = truncated.length;
+					while (end > 0 && truncated[end - 1] != '\n')
+						end--;
+					return new ByteArrayInputStream(truncated, 0, end);
+				}
+				break;
+			}
+		}
+		return new ByteArrayInputStream(bytes.toByteArray());
+	}
+
+	/**
+	 * Counts the series of an endpoint, failing with
+	 * {@link LimitExceededException} on the first one over the limit.
+	 */
+	SeriesCounter seriesCounter() {
+		return new SeriesCounter();
+	}
+
+	class SeriesCounter {
+		private int count;
+
+		void add() {
+			if (maxSeries > 0 && ++count > maxSeries)
+				throw new LimitExceededException(SERIES, "Endpoint exceeds " + maxSeries + " series");
+		}
+	}
+
+	@FunctionalInterface
+	static interface LimitListener {
+		void exceeded(LimitExceededException e);
+	}
+
+	/**
+	 * Signals an exceeded limit. Everything read before is still valid.
+	 */
+	public static class LimitExceededException extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+
+		/**
+		 * One of {@link EndpointLimits#SERIES}, {@link EndpointLimits#BODY_BYTES}
+		 * or {@link EndpointLimits#LINE_LENGTH}.
+		 */
+		public final String limit;
+
+		public LimitExceededException(String limit, String message) {
+			super(message);
+			this.limit = limit;
+		}
+	}
+
+}
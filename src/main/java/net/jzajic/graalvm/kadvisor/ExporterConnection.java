@@ -0,0 +1,299 @@
+package net.jzajic.graalvm.kadvisor;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Persistent HTTP/1.1 connection to a single in-container exporter.
+ * <p>
+ * Only implements what scraping needs: a GET request and a response body
+ * delimited either by Content-Length or by chunked transfer encoding,
+ * optionally gzip encoded and then decompressed while it is read. The
+ * connection can be reused for the next scrape once the body was read till the
+ * end and the exporter did not ask to close it.
+ */
+class ExporterConnection implements Closeable {
+
+	private final Socket socket;
+	private final InputStream in;
+	private final OutputStream out;
+	private final String host;
+
+	private long lastUsed;
+	private int requests;
+	private boolean responseStarted;
+	private boolean keepAlive;
+	private BodyInputStream body;
+	private GzipBodyInputStream gzipBody;
+
+	ExporterConnection(String ipAddress, int port, int connectTimeout) throws IOException {
+		this.socket = new Socket();
+		try {
+			socket.connect(new InetSocketAddress(ipAddress, port), connectTimeout);
+			socket.setTcpNoDelay(true);
+			this.in = new BufferedInputStream(socket.getInputStream());
+			this.out = new BufferedOutputStream(socket.getOutputStream());
+		} catch (IOException e) {
+			socket.close();
+			throw e;
+		}
+		this.host = ipAddress + ":" + port;
+		this.lastUsed = System.nanoTime();
+	}
+
+	Socket socket() {
+		return socket;
+	}
+
+	/**
+	 * @return Whether this connection already served a previous request.
+	 */
+	boolean isReused() {
+		return requests > 1;
+	}
+
+	/**
+	 * @return Whether a response status line was received for the current
+	 *         request. A failure before that on a reused connection usually
+	 *         means the exporter closed it while idle.
+	 */
+	boolean isResponseStarted() {
+		return responseStarted;
+	}
+
+	long idleNanos() {
+		return System.nanoTime() - lastUsed;
+	}
+
+	/**
+	 * Sends a GET request and reads the response head.
+	 *
+	 * @param acceptGzip
+	 *          Ask the exporter for a gzip encoded body.
+	 * @return Decoded body of a 200 response, must be read till the end before
+	 *         the connection can be reused.
+	 */
+	InputStream get(String uri, int readTimeout, boolean acceptGzip) throws IOException {
+		requests++;
+		responseStarted = false;
+		keepAlive = false;
+		gzipBody = null;
+		socket.setSoTimeout(readTimeout);
+		String request = "GET " + uri + " HTTP/1.1\r\n" +
+				"Host: " + host + "\r\n" +
+				"User-Agent: kadvisor/0.1\r\n" +
+				"Accept-Encoding: " + (acceptGzip ? "gzip" : "identity") + "\r\n" +
+				"\r\n";
+		out.write(request.getBytes(StandardCharsets.ISO_8859_1));
+		out.flush();
+
+		String statusLine = readLine();
+		responseStarted = true;
+		String[] status = statusLine.split(" ", 3);
+		if (status.length < 2 || !status[0].startsWith("HTTP/")) {
+			throw new IOException("Malformed status line '" + statusLine + "'");
+		}
+		keepAlive = status[0].equals("HTTP/1.1");
+		long contentLength = -1;
+		boolean chunked = false;
+		boolean gzip = false;
+		String header;
+		while (!(header = readLine()).isEmpty()) {
+			int colon = header.indexOf(':');
+			if (colon < 0)
+				continue;
+			String name = header.substring(0, colon).trim();
+			String value = header.substring(colon + 1).trim();
+			if (name.equalsIgnoreCase("Content-Length")) {
+				contentLength = Long.parseLong(value);
+			} else if (name.equalsIgnoreCase("Transfer-Encoding")) {
+				chunked = value.toLowerCase().contains("chunked");
+			} else if (name.equalsIgnoreCase("Content-Encoding")) {
+				gzip = value.equalsIgnoreCase("gzip");
+			} else if (name.equalsIgnoreCase("Connection")) {
+				keepAlive = value.equalsIgnoreCase("keep-alive") || (keepAlive && !value.equalsIgnoreCase("close"));
+			}
+		}
+		if (chunked) {
+			body = new ChunkedInputStream();
+		} else if (contentLength >= 0) {
+			body = new ContentLengthInputStream(contentLength);
+		} else {
+			// delimited by the exporter closing the connection
+			keepAlive = false;
+			body = new ContentLengthInputStream(Long.MAX_VALUE);
+		}
+		if (!status[1].equals("200")) {
+			keepAlive = false;
+			throw new IOException("Unexpected response status '" + statusLine + "'");
+		}
+		if (gzip) {
+			gzipBody = new GzipBodyInputStream(body);
+			return gzipBody;
+		}
+		return body;
+	}
+
+	/**
+	 * @return Body bytes of the last response as received on the wire.
+	 */
+	long wireBytes() {
+		return body != null ? body.count : 0;
+	}
+
+	/**
+	 * @return Body bytes of the last response after decompression.
+	 */
+	long decodedBytes() {
+		return gzipBody != null ? gzipBody.count : wireBytes();
+	}
+
+	/**
+	 * @return Whether the last response was completely read and the connection
+	 *         may serve another request.
+	 */
+	boolean isReusable() {
+		return keepAlive && body != null && body.finished && !socket.isClosed();
+	}
+
+	void idle() {
+		lastUsed = System.nanoTime();
+	}
+
+	@Override
+	public void close() {
+		try {
+			socket.close();
+		} catch (IOException e) {
+			// nothing to do
+		}
+	}
+
+	private String readLine() throws IOException {
+		StringBuilder line = new StringBuilder();
+		int b;
+		while ((b = in.read()) != '\n') {
+			if (b < 0)
+				throw new EOFException("Connection closed by exporter");
+			if (b != '\r')
+				line.append((char) b);
+		}
+		return line.toString();
+	}
+
+	private abstract class BodyInputStream extends InputStream {
+		boolean finished;
+		long count;
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+		}
+	}
+
+	private class ContentLengthInputStream extends BodyInputStream {
+		private long remaining;
+
+		private ContentLengthInputStream(long length) {
+			this.remaining = length;
+			this.finished = length == 0;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (remaining == 0)
+				return -1;
+			int read = in.read(b, off, (int) Math.min(len, remaining));
+			if (read < 0) {
+				if (remaining != Long.MAX_VALUE)
+					throw new EOFException("Response body ended " + remaining + " bytes early");
+				remaining = 0;
+				finished = true;
+				return -1;
+			}
+			remaining -= read;
+			count += read;
+			if (remaining == 0)
+				finished = true;
+			return read;
+		}
+	}
+
+	private class ChunkedInputStream extends BodyInputStream {
+		private long chunkRemaining;
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (finished)
+				return -1;
+			if (chunkRemaining == 0) {
+				String sizeLine = readLine();
+				int extension = sizeLine.indexOf(';');
+				if (extension >= 0)
+					sizeLine = sizeLine.substring(0, extension);
+				chunkRemaining = Long.parseLong(sizeLine.trim(), 16);
+				if (chunkRemaining == 0) {
+					// skip trailers
+					while (!readLine().isEmpty()) {
+					}
+					finished = true;
+					return -1;
+				}
+			}
+			int read = in.read(b, off, (int) Math.min(len, chunkRemaining));
+			if (read < 0)
+				throw new EOFException("Chunked response body ended early");
+			chunkRemaining -= read;
+			count += read;
+			if (chunkRemaining == 0)
+				readLine();
+			return read;
+		}
+	}
+
+	/**
+	 * Decompresses the body while it is read. At the end of the gzip stream the
+	 * rest of the raw body is drained, so the connection can be reused.
+	 */
+	private class GzipBodyInputStream extends InputStream {
+		private final BodyInputStream raw;
+		private final GZIPInputStream gzip;
+		long count;
+
+		private GzipBodyInputStream(BodyInputStream raw) throws IOException {
+			this.raw = raw;
+			this.gzip = new GZIPInputStream(raw, 8192);
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int read = gzip.read(b, off, len);
+			if (read > 0) {
+				count += read;
+			} else if (read < 0) {
+				// trailing bytes after the gzip member
+				byte[] rest = new byte[256];
+				while (raw.read(rest, 0, rest.length) >= 0) {
+				}
+			}
+			return read;
+		}
+	}
+
+}
@@ -0,0 +1,99 @@
+package net.jzajic.graalvm.kadvisor;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.TimeUnit;
+
+import net.jzajic.graalvm.client.messages.ContainerInfo;
+import net.jzajic.graalvm.kadvisor.WatchedContainerRegistry.ContainerListener;
+import net.jzajic.graalvm.kadvisor.WatchedContainerRegistry.Endpoint;
+
+/**
+ * Keep-alive connections to the in-container exporters, reused across
+ * scrapes. A pool is created when a container is added to the registry and
+ * all its connections are closed when the container is removed.
+ */
+public class ExporterConnectionPool implements ContainerListener {
+
+	private final Map<String, ConcurrentLinkedDeque<ExporterConnection>> pools = new ConcurrentHashMap<>();
+	private final int maxIdle;
+	private final long keepAliveNanos;
+
+	/**
+	 * @param maxIdle
+	 *          Maximum number of idle connections kept per endpoint.
+	 * @param keepAlive
+	 *          Milliseconds after which an idle connection is not reused, 0
+	 *          closes every connection after its scrape.
+	 */
+	public ExporterConnectionPool(int maxIdle, long keepAlive) {
+		super();
+		this.maxIdle = maxIdle;
+		this.keepAliveNanos = TimeUnit.MILLISECONDS.toNanos(keepAlive);
+	}
+
+	@Override
+	public void added(String ipAddress, ContainerInfo info) {
+		pools.putIfAbsent(ipAddress, new ConcurrentLinkedDeque<>());
+	}
+
+	@Override
+	public void removed(String ipAddress, ContainerInfo info) {
+		ConcurrentLinkedDeque<ExporterConnection> pool = pools.remove(ipAddress);
+		if (pool != null)
+			closeAll(pool);
+	}
+
+	/**
+	 * @return Idle connection to the endpoint, or a new one if none is
+	 *         available.
+	 */
+	ExporterConnection borrow(Endpoint endpoint, int connectTimeout) throws IOException {
+		ConcurrentLinkedDeque<ExporterConnection> pool = pools.get(endpoint.ipAddress);
+		if (pool != null) {
+			ExporterConnection connection;
+			while ((connection = pool.pollFirst()) != null) {
+				if (connection.idleNanos() < keepAliveNanos)
+					return connection;
+				connection.close();
+			}
+		}
+		return open(endpoint, connectTimeout);
+	}
+
+	ExporterConnection open(Endpoint endpoint, int connectTimeout) throws IOException {
+		return new ExporterConnection(endpoint.ipAddress, endpoint.port, connectTimeout);
+	}
+
+	/**
+	 * Returns the connection to the pool of its endpoint if it can be reused,
+	 * otherwise closes it.
+	 */
+	void release(Endpoint endpoint, ExporterConnection connection) {
+		ConcurrentLinkedDeque<ExporterConnection> pool = pools.get(endpoint.ipAddress);
+		if (keepAliveNanos > 0 && pool != null && connection.isReusable() && pool.size() < maxIdle) {
+			connection.idle();
+			pool.offerFirst(connection);
+			// the container may have been removed in the meantime
+			if (pools.get(endpoint.ipAddress) != pool && pool.remove(connection))
+				connection.close();
+		} else {
+			connection.close();
+		}
+	}
+
+	public void stop() {
+		pools.values().forEach(ExporterConnectionPool::closeAll);
+		pools.clear();
+	}
+
+	private static void closeAll(ConcurrentLinkedDeque<ExporterConnection> pool) {
+		ExporterConnection connection;
+		while ((connection = pool.pollFirst()) != null) {
+			connection.close();
+		}
+	}
+
+}
@@ -0,0 +1,413 @@
+package net.jzajic.graalvm.kadvisor;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import io.prometheus.client.Collector.MetricFamilySamples;
+import io.prometheus.client.Collector.MetricFamilySamples.Sample;
+import io.prometheus.client.Collector.Type;
+import net.jzajic.graalvm.kadvisor.EndpointLimits.LimitExceededException;
+import net.jzajic.graalvm.kadvisor.PrometheusTextTokenizer.Line;
+import net.jzajic.graalvm.kadvisor.WatchedContainerRegistry.Endpoint;
+
+/**
+ * Scrapes the in-container exporters concurrently on a bounded pool, so the
+ * latency of a full scrape tracks the slowest exporter instead of the sum of
+ * all of them.
+ * <p>
+ * Every endpoint is bounded by a connect and a read timeout and the whole
+ * scrape by an overall budget. Endpoints which do not make it in time are left
+ * out of the result and reported through the
+ * {@code kadvisor_scrape_endpoint_up} series.
+ */
+public class ExporterScraper {
+
+	/**
+	 * Exporters of one streamed scrape fetched or waiting to be written to the
+	 * client at once, bounding the bodies held in memory.
+	 */
+	private static final int STREAM_BUFFERED_BODIES = 8;
+
+	private final PrometheusTextFormatParser parser = new PrometheusTextFormatParser();
+	private final ExecutorService executor;
+	private final ExporterConnectionPool connectionPool;
+	private final int connectTimeout;
+	private final int readTimeout;
+	private final long scrapeTimeout;
+	private final boolean acceptGzip;
+	private final KadvisorMetrics metrics;
+	private final LabelInterner interner;
+	private final EndpointLimits limits;
+
+	/**
+	 * @param threads
+	 *          Maximum number of endpoints scraped in parallel.
+	 * @param connectionPool
+	 *          Keep-alive connections to the endpoints.
+	 * @param connectTimeout
+	 *          Connect timeout of a single endpoint in milliseconds.
+	 * @param readTimeout
+	 *          Read timeout of a single endpoint in milliseconds.
+	 * @param scrapeTimeout
+	 *          Budget of the whole scrape in milliseconds.
+	 * @param acceptGzip
+	 *          Ask the exporters for gzip encoded responses.
+	 * @param metrics
+	 *          Counters of received response bytes.
+	 * @param interner
+	 *          Names and label sets shared across scrapes.
+	 * @param limits
+	 *          Limits of a single endpoint response.
+	 */
+	public ExporterScraper(int threads, ExporterConnectionPool connectionPool, int connectTimeout, int readTimeout, long scrapeTimeout, boolean acceptGzip, KadvisorMetrics metrics, LabelInterner interner,
+			EndpointLimits limits) {
+		super();
+		this.limits = limits;
+		this.interner = interner;
+		this.acceptGzip = acceptGzip;
+		this.metrics = metrics;
+		this.connectionPool = connectionPool;
+		this.connectTimeout = connectTimeout;
+		this.readTimeout = readTimeout;
+		this.scrapeTimeout = scrapeTimeout;
+		this.executor = Executors.newFixedThreadPool(threads, new ThreadFactoryBuilder()
+				.setNameFormat("kadvisor-scraper-%d")
+					.setDaemon(true)
+					.build());
+	}
+
+	/**
+	 * Scrapes all given endpoints in parallel and merges their samples per
+	 * metric family. Endpoints which fail or exceed the scrape budget are logged
+	 * and left out.
+	 *
+	 * @param familyFilter
+	 *          Families to parse, <code>null</code> parses all of them.
+	 */
+	public Result scrape(List<Endpoint> endpoints, String query, Predicate<Line> familyFilter) {
+		final Result result = new Result();
+		scrape(endpoints, query, 0, (endpoint, body) -> {
+			final Map<String, MetricFamilySamples> samples = new HashMap<>();
+			LabelInterner.Table table = interner.table(endpoint);
+			long parseStart = System.nanoTime();
+			try {
+				parser.collect(body, samples, table, familyFilter, limits);
+			} catch (LimitExceededException e) {
+				limitExceeded(endpoint, e);
+			}
+			metrics.parseDuration.observeNanos(System.nanoTime() - parseStart);
+			table.endScrape();
+			int sampleCount = 0;
+			for (MetricFamilySamples family : samples.values())
+				sampleCount += family.samples.size();
+			metrics.endpointSamples(endpoint, sampleCount);
+			return samples;
+		}, (endpoint, samples) -> merge(samples, result.samples), result);
+		return result;
+	}
+
+	/**
+	 * Streams the raw exporter output of all given endpoints to the output,
+	 * injecting the container tags into every sample. Exporters are still
+	 * fetched in parallel, but at most {@link #STREAM_BUFFERED_BODIES} bodies
+	 * are held in memory. The next exporter is only fetched once a body was
+	 * written, so a slow client holds back the further exporters without
+	 * blocking any pool thread. No {@link MetricFamilySamples} are built. A
+	 * failed write to the client ends the stream with its exception, it does
+	 * not mark any endpoint down. HELP and TYPE lines are written only for the
+	 * first occurrence of a family, samples of one family coming from
+	 * different containers are therefore not grouped together.
+	 * The selected scrape status series are appended at the end.
+	 */
+	public void stream(List<Endpoint> endpoints, SeriesQuery query, OutputStream output) throws IOException {
+		final Result result = new Result();
+		final Set<String> writtenFamilies = new HashSet<>();
+		final Predicate<Line> familyFilter = query.familyFilter();
+		final OutputStream client = new ClientOutputStream(output);
+		try {
+			scrape(query.endpoints(endpoints), query.exporterQuery, STREAM_BUFFERED_BODIES,
+					(endpoint, body) -> limits.readBody(body, e -> limitExceeded(endpoint, e)),
+					(endpoint, body) -> {
+						long parseStart = System.nanoTime();
+						try {
+							parser.relabel(body, client, endpoint.labelFragmentBytes, writtenFamilies, familyFilter,
+									query.hasSelectors() ? (family, line) -> query.acceptsSample(family, line, endpoint) : null, limits);
+						} catch (LimitExceededException e) {
+							limitExceeded(endpoint, e);
+						}
+						metrics.parseDuration.observeNanos(System.nanoTime() - parseStart);
+					}, result);
+		} catch (ClientWriteException e) {
+			throw e.getCause();
+		}
+		Writer writer = new OutputStreamWriter(output, StandardCharsets.UTF_8);
+		PrometheusTextFormatParser.write004(writer, query.filter(result.statusSamples()).iterator());
+		writer.flush();
+	}
+
+	private void limitExceeded(Endpoint endpoint, LimitExceededException e) {
+		System.err.println("Scrape of "+endpoint.ipAddress+" truncated: "+e.getMessage());
+		metrics.limitExceeded(endpoint, e.limit);
+	}
+
+	/**
+	 * Scrapes all endpoints on the pool, reads their bodies with the
+	 * <code>reader</code> on the pool threads and hands the results to the
+	 * <code>consumer</code> on the calling thread in completion order. A
+	 * {@link ClientWriteException} of the consumer aborts the whole scrape.
+	 * 
+	 * @param maxInFlight
+	 *          Endpoints submitted and not yet consumed at once, 0 submits all
+	 *          of them right away. A further one is submitted whenever a result
+	 *          was consumed.
+	 */
+	private <T> void scrape(List<Endpoint> endpoints, String query, int maxInFlight, BodyReaderFunction<T> reader, ResultConsumer<T> consumer,
+			Result result) {
+		final long start = System.nanoTime();
+		final long deadline = start + TimeUnit.MILLISECONDS.toNanos(scrapeTimeout);
+		CompletionService<T> completionService = new ExecutorCompletionService<>(executor);
+		Map<Future<T>, ScrapeTask<T>> pending = new IdentityHashMap<>();
+		Iterator<Endpoint> unsubmitted = endpoints.iterator();
+		int inFlight = maxInFlight > 0 ? maxInFlight : Integer.MAX_VALUE;
+		boolean aborted = false;
+		while (pending.size() < inFlight && unsubmitted.hasNext()) {
+			ScrapeTask<T> task = new ScrapeTask<>(unsubmitted.next(), query, reader);
+			pending.put(completionService.submit(task), task);
+		}
+		try {
+			while (!pending.isEmpty()) {
+				Future<T> future = completionService.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+				if (future == null)
+					break;
+				ScrapeTask<T> task = pending.remove(future);
+				boolean up = false;
+				try {
+					consumer.accept(task.endpoint, future.get());
+					up = true;
+				} catch (ExecutionException ex) {
+					System.err.println("Scrape of "+task.endpoint.ipAddress+" failed: "+ex.getCause());
+				} catch (ClientWriteException ex) {
+					aborted = true;
+					throw ex;
+				} catch (IOException ex) {
+					System.err.println("Scrape of "+task.endpoint.ipAddress+" failed: "+ex);
+				}
+				result.addStatus(task.endpoint, up, (task.finished - task.started) / 1e9);
+				if (unsubmitted.hasNext()) {
+					ScrapeTask<T> next = new ScrapeTask<>(unsubmitted.next(), query, reader);
+					pending.put(completionService.submit(next), next);
+				}
+			}
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		} finally {
+			boolean timedOut = !aborted;
+			pending.forEach((future, task) -> {
+				future.cancel(true);
+				task.abort();
+				if (timedOut) {
+					System.err.println("Scrape of "+task.endpoint.ipAddress+" exceeded "+scrapeTimeout+" ms budget");
+					result.addStatus(task.endpoint, false, (System.nanoTime() - start) / 1e9);
+				}
+			});
+			while (timedOut && unsubmitted.hasNext()) {
+				Endpoint endpoint = unsubmitted.next();
+				System.err.println("Scrape of "+endpoint.ipAddress+" exceeded "+scrapeTimeout+" ms budget before it started");
+				result.addStatus(endpoint, false, (System.nanoTime() - start) / 1e9);
+			}
+			result.kadvisorSamples = metrics.collect();
+		}
+	}
+
+	/**
+	 * Failure writing to the client of a streamed scrape, as opposed to a
+	 * failure of the exporter.
+	 */
+	private static class ClientWriteException extends UncheckedIOException {
+		private static final long serialVersionUID = 1L;
+
+		ClientWriteException(IOException cause) {
+			super(cause);
+		}
+	}
+
+	/**
+	 * Marks the failures of the client output.
+	 */
+	private static class ClientOutputStream extends FilterOutputStream {
+		ClientOutputStream(OutputStream output) {
+			super(output);
+		}
+
+		@Override
+		public void write(int b) {
+			try {
+				out.write(b);
+			} catch (IOException e) {
+				throw new ClientWriteException(e);
+			}
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			try {
+				out.write(b, off, len);
+			} catch (IOException e) {
+				throw new ClientWriteException(e);
+			}
+		}
+
+		@Override
+		public void flush() {
+			try {
+				out.flush();
+			} catch (IOException e) {
+				throw new ClientWriteException(e);
+			}
+		}
+	}
+
+	@FunctionalInterface
+	private static interface BodyReaderFunction<T> {
+		T read(Endpoint endpoint, InputStream body) throws IOException;
+	}
+
+	@FunctionalInterface
+	private static interface ResultConsumer<T> {
+		void accept(Endpoint endpoint, T result) throws IOException;
+	}
+
+	private class ScrapeTask<T> implements Callable<T> {
+		private final Endpoint endpoint;
+		private final String query;
+		private final BodyReaderFunction<T> reader;
+		private volatile Socket socket;
+		private volatile long started;
+		private volatile long finished;
+
+		private ScrapeTask(Endpoint endpoint, String query, BodyReaderFunction<T> reader) {
+			this.endpoint = endpoint;
+			this.query = query;
+			this.reader = reader;
+		}
+
+		@Override
+		public T call() throws IOException {
+			started = System.nanoTime();
+			try {
+				String getURI = endpoint.path;
+				if (query != null)
+					getURI += "?" + query;
+				ExporterConnection connection = connectionPool.borrow(endpoint, connectTimeout);
+				try {
+					return fetch(connection, getURI);
+				} catch (IOException e) {
+					if (!connection.isReused() || connection.isResponseStarted())
+						throw e;
+					// idle connection closed by the exporter, retry on a fresh one
+					return fetch(connectionPool.open(endpoint, connectTimeout), getURI);
+				}
+			} finally {
+				finished = System.nanoTime();
+				metrics.endpointScraped(endpoint, finished - started);
+			}
+		}
+
+		private T fetch(ExporterConnection connection, String getURI) throws IOException {
+			this.socket = connection.socket();
+			try {
+				return reader.read(endpoint, connection.get(getURI, readTimeout, acceptGzip));
+			} finally {
+				metrics.scrapeWireBytes.add(connection.wireBytes());
+				metrics.scrapeDecodedBytes.add(connection.decodedBytes());
+				connectionPool.release(endpoint, connection);
+			}
+		}
+
+		/**
+		 * Closes the socket of a task which ran out of the scrape budget, so the
+		 * worker thread is released without waiting for the read timeout.
+		 */
+		private void abort() {
+			Socket socket = this.socket;
+			if (socket != null) {
+				try {
+					socket.close();
+				} catch (IOException e) {
+					// already closed
+				}
+			}
+		}
+	}
+
+	/**
+	 * Merged samples of a single scrape together with per endpoint scrape
+	 * status.
+	 */
+	public static class Result {
+		public final Map<String, MetricFamilySamples> samples = new HashMap<>();
+		private final List<Sample> upSamples = new ArrayList<>();
+		private final List<Sample> durationSamples = new ArrayList<>();
+		private List<MetricFamilySamples> kadvisorSamples = Collections.emptyList();
+
+		private void addStatus(Endpoint e, boolean up, double durationSeconds) {
+			upSamples.add(new Sample("kadvisor_scrape_endpoint_up", e.tagNames, e.tagValues, up ? 1 : 0));
+			durationSamples.add(new Sample("kadvisor_scrape_duration_seconds", e.tagNames, e.tagValues, durationSeconds));
+		}
+
+		/**
+		 * @return Scrape status families, one series per endpoint, followed by
+		 *         the counters of kadvisor itself.
+		 */
+		public List<MetricFamilySamples> statusSamples() {
+			List<MetricFamilySamples> status = new ArrayList<>(2 + kadvisorSamples.size());
+			status.add(new MetricFamilySamples("kadvisor_scrape_endpoint_up", Type.GAUGE, "Whether the container exporter was scraped successfully.", Collections.unmodifiableList(upSamples)));
+			status.add(new MetricFamilySamples("kadvisor_scrape_duration_seconds", Type.GAUGE, "Duration of the container exporter scrape.", Collections.unmodifiableList(durationSamples)));
+			status.addAll(kadvisorSamples);
+			return status;
+		}
+	}
+
+	private static void merge(Map<String, MetricFamilySamples> source, Map<String, MetricFamilySamples> output) {
+		source.forEach((name, samples) -> {
+			MetricFamilySamples existingSamples = output.get(name);
+			if (existingSamples != null) {
+				existingSamples.samples.addAll(samples.samples);
+			} else {
+				output.put(name, samples);
+			}
+		});
+	}
+
+	public void stop() {
+		executor.shutdownNow();
+	}
+
+}
@@ -1,247 +1,376 @@
 package net.jzajic.graalvm.kadvisor;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
-import java.io.Writer;
-import java.net.Socket;
-import java.util.ArrayList;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.zip.GZIPOutputStream;
 
-import com.google.common.collect.Multimap;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.io.CountingOutputStream;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 import io.prometheus.client.Collector.MetricFamilySamples;
-import io.prometheus.client.Collector.MetricFamilySamples.Sample;
 import io.prometheus.client.Collector.Type;
+import net.jzajic.graalvm.kadvisor.WatchedContainerRegistry.Endpoint;
 import rawhttp.core.RawHttp;
 import rawhttp.core.RawHttpHeaders;
 import rawhttp.core.RawHttpRequest;
 import rawhttp.core.RawHttpResponse;
-import rawhttp.core.body.BodyReader;
 import rawhttp.core.body.BytesBody;
+import rawhttp.core.body.ChunkedBody;
 import rawhttp.core.body.StringBody;
 
 public class HTTPMetricHandler {
 	
 	private final WatchedContainerRegistry registry;
-	private final PrometheusTextFormatParser parser = new PrometheusTextFormatParser();
+	private final ExporterScraper scraper;
+	private final boolean passThrough;
+	private final Map<String, AggregationRule> aggregations = new HashMap<>();
+	private final KadvisorMetrics metrics;
+	
+	private static final byte[] KADVISOR_HEADER = "# KADVISOR\n".getBytes(StandardCharsets.UTF_8);
+	private static final int RESPONSE_CHUNKS = 8;
+	private static final int RESPONSE_CHUNK_SIZE = 16 * 1024;
+	private static final long RESPONSE_WRITE_TIMEOUT = 30000;
+	private static final int DEFAULT_RESPONSE_WRITERS = 8;
+	
+	private static final Set<String> IDLE_CPU_MODES = ImmutableSet.of("idle", "iowait");
+	private static final Set<String> MEMORY_FAMILIES = ImmutableSet.of("node_memory_MemTotal_bytes", "node_memory_MemFree_bytes",
+			"node_memory_Cached_bytes", "node_memory_Buffers_bytes");
+	/**
+	 * Exporter families every exported metric is derived from, see
+	 * {@link #computeMetrics(Map, Set, boolean)}.
+	 */
+	private static final Map<String, Set<String>> DERIVED_FROM = ImmutableMap.<String, Set<String>>builder()
+			.put("container_memory_usage_bytes", MEMORY_FAMILIES)
+			.put("container_memory_rss", MEMORY_FAMILIES)
+			.put("container_memory_cache", MEMORY_FAMILIES)
+			.put("container_cpu_usage_seconds_total", ImmutableSet.of("node_cpu_seconds_total"))
+			.put("container_cpu_utilisation_ratio", ImmutableSet.of("node_cpu_seconds_total"))
+			.put("container_memory_mapped_file", ImmutableSet.of("node_memory_Mapped_bytes"))
+			.build();
+	
+	private final CounterDeltas counterDeltas = new CounterDeltas();
+	private volatile MetricSnapshot snapshot;
+	private ScheduledExecutorService collectingExecutor;
+	private long maxStaleness;
+	private final ExecutorService responseWriters;
 	
 	RawHttp http = new RawHttp();
 	
-	HTTPMetricHandler(WatchedContainerRegistry registry) {
+	/**
+	 * @param passThrough
+	 *          Stream the raw exporter metrics with injected container tags
+	 *          instead of exporting the derived container metrics.
+	 */
+	HTTPMetricHandler(WatchedContainerRegistry registry, ExporterScraper scraper, boolean passThrough) {
+		this(registry, scraper, passThrough, Collections.emptyList(), new KadvisorMetrics());
+	}
+	
+	/**
+	 * @param aggregations
+	 *          Aggregations applied to the derived container metrics before
+	 *          they are exported, at most one per metric.
+	 * @param metrics
+	 *          Counters of kadvisor itself, served by {@link #handleSelf()}.
+	 */
+	HTTPMetricHandler(WatchedContainerRegistry registry, ExporterScraper scraper, boolean passThrough, List<AggregationRule> aggregations, KadvisorMetrics metrics) {
+		this(registry, scraper, passThrough, aggregations, metrics, DEFAULT_RESPONSE_WRITERS);
+	}
+	
+	/**
+	 * @param responseWriters
+	 *          Number of streamed responses rendered at once, further ones are
+	 *          answered with 503.
+	 */
+	HTTPMetricHandler(WatchedContainerRegistry registry, ExporterScraper scraper, boolean passThrough, List<AggregationRule> aggregations, KadvisorMetrics metrics,
+			int responseWriters) {
 		super();
 		this.registry = registry;
+		this.scraper = scraper;
+		this.passThrough = passThrough;
+		this.metrics = metrics;
+		aggregations.forEach(rule -> this.aggregations.put(rule.metric, rule));
+		this.responseWriters = new ThreadPoolExecutor(0, responseWriters, 60, TimeUnit.SECONDS, new SynchronousQueue<>(),
+				new ThreadFactoryBuilder()
+					.setNameFormat("kadvisor-response-%d")
+						.setDaemon(true)
+						.build());
 	}
 	
 	public Optional<RawHttpResponse<?>> handle(RawHttpRequest req) {
-		String query = req.getUri().getRawQuery();
+		final SeriesQuery query;
+		try {
+			query = SeriesQuery.parse(req.getUri().getRawQuery());
+		} catch (IllegalArgumentException e) {
+			return Optional.of(http.parseResponse("HTTP/1.1 400 Bad Request\n" +
+					"Content-Type: text/plain").withBody(new StringBody(e.getMessage())));
+		}
+		if (passThrough) {
+			return stream(req, os -> {
+				os.write(KADVISOR_HEADER);
+				scraper.stream(registry.endpoints(), query, os);
+			});
+		}
 		
-    ByteArrayOutputStream response = new ByteArrayOutputStream();
-    Writer writer = new OutputStreamWriter(response);
-    response.reset();    
-    //WRITE
-    final Map<String,MetricFamilySamples> nodeExportersSamples = new HashMap<>();
-    registry.endpoints().forEach(e -> {
-    	try(Socket socket = new Socket(e.ipAddress, e.port); OutputStream socketOs = socket.getOutputStream();) {
-    		String getURI = e.path;
-    		if (query != null) getURI += "?"+query;
-    		RawHttpRequest request = http.parseRequest(
-    		    "GET "+getURI+" HTTP/1.1\r\n" +
-    		    "User-Agent: kadvisor/0.1\r\n" +
-    		    "Accept-Encoding: identity\r\n" +
-    		    "Host: "+e.ipAddress+"\r\n");
-    		request.writeTo(socketOs);
-    		socketOs.flush();
-    		RawHttpResponse<?> rawResponse = http.parseResponse(socket.getInputStream()).eagerly();
-    		Optional<? extends BodyReader> body = rawResponse.getBody();
-  			parser.collect(body.get().asRawStream(), nodeExportersSamples, e.tags);
-    	} catch(IOException ex) {
-    		ex.printStackTrace();
-    	}
-    });
-    
-    Map<String,MetricFamilySamples> outputSamples = computeMetrics(nodeExportersSamples);
+    MetricSnapshot currentSnapshot = query.exporterQuery == null ? cachedSnapshot() : null;
+    if (currentSnapshot == null)
+    	return stream(req, os -> collect(query, collectingExecutor == null).write(os));
+    if (query.isFiltering())
+    	currentSnapshot = new MetricSnapshot(query.filter(currentSnapshot.families), currentSnapshot.timestamp, metrics);
     
     try {
-    	writer.write("# KADVISOR\n");
-	    PrometheusTextFormatParser.write004(writer, outputSamples.values().iterator());
-	    writer.flush();
-	    response.close();
-	    
-	    RawHttpResponse<Void> resp = http.parseResponse("HTTP/1.0 200 OK\n" +
-	        "Content-Type: "+PrometheusTextFormatParser.CONTENT_TYPE_004+"\n");
-	    if (shouldUseCompression(req)) {
-	        ByteArrayOutputStream bos = new ByteArrayOutputStream();
-	        final GZIPOutputStream os = new GZIPOutputStream(bos);
-	        response.writeTo(os);
-	        os.finish();
-	        os.close();
+	    boolean compress = shouldUseCompression(req);
+	    String etag = currentSnapshot.etag(compress);
+	    String headers = "ETag: "+etag+"\n" +
+	    		"Vary: Accept-Encoding\n" +
+	    		"Last-Modified: "+currentSnapshot.lastModified()+"\n";
+	    if (matchesEtag(req, etag)) {
+	    	return Optional.of(http.parseResponse("HTTP/1.1 304 Not Modified\n" + headers));
+	    }
+	    RawHttpResponse<Void> resp = http.parseResponse("HTTP/1.1 200 OK\n" +
+	        "Content-Type: "+PrometheusTextFormatParser.CONTENT_TYPE_004+"\n" + headers);
+	    if (compress) {
+	    		byte[] body = currentSnapshot.gzipBody();
+	    		metrics.responseBytes.add(body.length);
 	        return Optional.of(resp.
 	        		withHeaders(RawHttpHeaders.newBuilder().with("Content-Encoding", "gzip").build())
-	        		.withBody(new BytesBody(bos.toByteArray())));
+	        		.withBody(new BytesBody(body)));
 	    } else {
-	    		return Optional.of(resp.withBody(new BytesBody(response.toByteArray())));
+	    		byte[] body = currentSnapshot.plainBody();
+	    		metrics.responseBytes.add(body.length);
+	    		return Optional.of(resp.withBody(new BytesBody(body)));
 	    }
-    } catch(IOException e) {
+    } catch(UncheckedIOException e) {
     	e.printStackTrace();
-    	return Optional.of(http.parseResponse("HTTP/1.0 500 Internal Server Error\n" +
+    	return Optional.of(http.parseResponse("HTTP/1.1 500 Internal Server Error\n" +
           "Content-Type: text/plain").withBody(new StringBody("Internal Server Error")));
     }
 	}
 	
-	private Map<String, MetricFamilySamples> computeMetrics(Map<String, MetricFamilySamples> nodeExporterSamples) {
+	/**
+	 * Renders the body on a separate thread and streams it to the client with
+	 * chunked transfer encoding, gzipping on the fly when accepted. Memory of the
+	 * response is bounded by the {@link ResponsePipe} instead of the body size.
+	 * When all response writers are busy the request is answered with 503.
+	 */
+	private Optional<RawHttpResponse<?>> stream(RawHttpRequest req, BodyWriter writer) {
+		final boolean compress = shouldUseCompression(req);
+		final ResponsePipe pipe = new ResponsePipe(RESPONSE_CHUNKS, RESPONSE_CHUNK_SIZE, RESPONSE_WRITE_TIMEOUT);
+		try {
+			responseWriters.execute(() -> {
+				try {
+					CountingOutputStream sink = new CountingOutputStream(pipe.sink());
+					OutputStream os = compress ? new GZIPOutputStream(sink, RESPONSE_CHUNK_SIZE) : sink;
+					writer.write(os);
+					os.close();
+					metrics.responseBytes.add(sink.getCount());
+				} catch (IOException | RuntimeException e) {
+					e.printStackTrace();
+					pipe.fail(e);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			return Optional.of(http.parseResponse("HTTP/1.1 503 Service Unavailable\n" +
+					"Content-Type: text/plain\n" +
+					"Retry-After: 1").withBody(new StringBody("Service Unavailable")));
+		}
+		RawHttpResponse<Void> resp = http.parseResponse("HTTP/1.1 200 OK\n" +
+				"Content-Type: "+PrometheusTextFormatParser.CONTENT_TYPE_004+"\n");
+		if (compress) {
+			resp = resp.withHeaders(RawHttpHeaders.newBuilder().with("Content-Encoding", "gzip").build());
+		}
+		return Optional.of(resp.withBody(new ChunkedBody(pipe)));
+	}
+	
+	/**
+	 * Answers <code>/kadvisor/metrics</code> with the counters and histograms of
+	 * kadvisor itself, without scraping any container.
+	 */
+	public Optional<RawHttpResponse<?>> handleSelf() {
+		try {
+			StringWriter writer = new StringWriter();
+			PrometheusTextFormatParser.write004(writer, metrics.collectAll().iterator());
+			return Optional.of(http.parseResponse("HTTP/1.1 200 OK\n" +
+					"Content-Type: "+PrometheusTextFormatParser.CONTENT_TYPE_004).withBody(new StringBody(writer.toString())));
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+	
+	@FunctionalInterface
+	private static interface BodyWriter {
+		void write(OutputStream os) throws IOException;
+	}
+	
+	/**
+	 * Scrapes the watched containers selected by the query and derives the
+	 * selected metrics from their samples. Only the exporter families the
+	 * selected metrics are derived from are parsed.
+	 * 
+	 * @param updateDeltas
+	 *          Whether an unfiltered collection becomes the base of the counter
+	 *          increases of the next one. Only the background loop updates them
+	 *          when it runs, so their interval stays the collection interval.
+	 */
+	MetricSnapshot collect(SeriesQuery query, boolean updateDeltas) {
+		Set<String> inputs = new HashSet<>();
+		DERIVED_FROM.forEach((metric, from) -> {
+			if (query.acceptsFamily(metric))
+				inputs.addAll(from);
+		});
+		List<Endpoint> endpoints = query.endpoints(registry.endpoints());
+		Set<String> tagNames = new HashSet<>();
+		endpoints.forEach(endpoint -> tagNames.addAll(endpoint.tagNames));
+		final ExporterScraper.Result scrapeResult = scraper.scrape(endpoints, query.exporterQuery,
+				line -> inputs.contains(line.name()));
+		long computeStart = System.nanoTime();
+		Map<String,MetricFamilySamples> outputSamples = computeMetrics(scrapeResult.samples, tagNames, updateDeltas && query == SeriesQuery.ALL);
+		metrics.computeDuration.observeNanos(System.nanoTime() - computeStart);
+		scrapeResult.statusSamples().forEach(status -> outputSamples.put(status.name, status));
+		Collection<MetricFamilySamples> families = outputSamples.values();
+		if (query.isFiltering())
+			families = query.filter(families);
+		return new MetricSnapshot(families, System.currentTimeMillis(), metrics);
+	}
+	
+	/**
+	 * Starts a background loop collecting a fresh snapshot every
+	 * <code>interval</code> milliseconds. Requests without query parameters are
+	 * then served from the latest snapshot as long as it is not older than
+	 * <code>maxStaleness</code> milliseconds, otherwise they fall back to a
+	 * synchronous scrape.
+	 */
+	public void startCollecting(long interval, long maxStaleness) {
+		this.maxStaleness = maxStaleness;
+		this.collectingExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+				.setNameFormat("kadvisor-collector")
+					.setDaemon(true)
+					.build());
+		this.collectingExecutor.scheduleWithFixedDelay(() -> {
+			try {
+				MetricSnapshot collected = collect(SeriesQuery.ALL, true);
+				// render ahead, so requests only hand out the prepared bytes
+				collected.plainBody();
+				collected.gzipBody();
+				snapshot = collected;
+			} catch (RuntimeException e) {
+				e.printStackTrace();
+			}
+		}, 0, interval, TimeUnit.MILLISECONDS);
+	}
+	
+	private MetricSnapshot cachedSnapshot() {
+		MetricSnapshot current = this.snapshot;
+		if (current != null && current.isFresh(maxStaleness))
+			return current;
+		return null;
+	}
+	
+	public void stop() {
+		if (collectingExecutor != null)
+			collectingExecutor.shutdownNow();
+		responseWriters.shutdownNow();
+	}
+	
+	Map<String, MetricFamilySamples> computeMetrics(Map<String, MetricFamilySamples> nodeExporterSamples, Set<String> tagNames) {
+		return computeMetrics(nodeExporterSamples, tagNames, true);
+	}
+	
+	/**
+	 * @param tagNames
+	 *          Names of the container tags, kept by the aggregations.
+	 * @param updateDeltas
+	 *          Whether the counter values are remembered for the next
+	 *          collection, see {@link CounterDeltas}.
+	 */
+	Map<String, MetricFamilySamples> computeMetrics(Map<String, MetricFamilySamples> nodeExporterSamples, Set<String> tagNames, boolean updateDeltas) {
 		Map<String, MetricFamilySamples> outputSamples = new HashMap<>();
+		SeriesIndex index = new SeriesIndex();
 		MetricFamilySamples totalMemBytes = nodeExporterSamples.get("node_memory_MemTotal_bytes");
 		MetricFamilySamples freeBytes = nodeExporterSamples.get("node_memory_MemFree_bytes");
 		MetricFamilySamples cachedBytes = nodeExporterSamples.get("node_memory_Cached_bytes");
 		MetricFamilySamples buffersBytes = nodeExporterSamples.get("node_memory_Buffers_bytes");
 		
 		if(totalMemBytes != null && freeBytes != null && cachedBytes != null && buffersBytes != null) {
-			GroupedMetric totalMemPerLabels = groupMetrics(totalMemBytes);
-			GroupedMetric freePerLabels = groupMetrics(freeBytes);
-			GroupedMetric cachedPerLabels = groupMetrics(cachedBytes);
-			GroupedMetric buffersPerLabels = groupMetrics(buffersBytes);
-			GroupedMetric memUsageBytes = totalMemPerLabels.minus(freePerLabels, "container_memory_usage_bytes");
-			GroupedMetric memRssBytes =  memUsageBytes.minus(buffersPerLabels, "xxx").minus(cachedPerLabels, "container_memory_rss");
-			addMetric(outputSamples, memUsageBytes, totalMemBytes.type, "Current memory usage in bytes, including all memory regardless of when it was accessed");
-			addMetric(outputSamples, memRssBytes, totalMemBytes.type, "Size of RSS in bytes.");
-			addMetric(outputSamples, cachedPerLabels.rename("container_memory_cache"), cachedBytes.type, "Total page cache memory.");
+			SeriesVector totalMemPerLabels = SeriesVector.of(totalMemBytes, index);
+			SeriesVector freePerLabels = SeriesVector.of(freeBytes, index);
+			SeriesVector cachedPerLabels = SeriesVector.of(cachedBytes, index);
+			SeriesVector buffersPerLabels = SeriesVector.of(buffersBytes, index);
+			SeriesVector memUsageBytes = totalMemPerLabels.minus(freePerLabels, "container_memory_usage_bytes");
+			SeriesVector memRssBytes =  memUsageBytes.minus(buffersPerLabels, "xxx").minus(cachedPerLabels, "container_memory_rss");
+			addMetric(outputSamples, tagNames, memUsageBytes, totalMemBytes.type, "Current memory usage in bytes, including all memory regardless of when it was accessed");
+			addMetric(outputSamples, tagNames, memRssBytes, totalMemBytes.type, "Size of RSS in bytes.");
+			addMetric(outputSamples, tagNames, cachedPerLabels.rename("container_memory_cache"), cachedBytes.type, "Total page cache memory.");
 		}
 		
-		addRenamed(outputSamples, nodeExporterSamples, "node_cpu_seconds_total", "container_cpu_usage_seconds_total");
-		addRenamed(outputSamples, nodeExporterSamples, "node_memory_Mapped_bytes", "container_memory_mapped_file");
+		MetricFamilySamples cpuSeconds = nodeExporterSamples.get("node_cpu_seconds_total");
+		if(cpuSeconds != null) {
+			SeriesVector cpuPerLabels = SeriesVector.of(cpuSeconds, index);
+			addMetric(outputSamples, tagNames, cpuPerLabels.rename("container_cpu_usage_seconds_total"), cpuSeconds.type, cpuSeconds.help);
+			// busy share of all CPU time since the previous collection, per container
+			SeriesVector total = cpuPerLabels.sumWithout("cpu_total_seconds", "cpu", "mode");
+			SeriesVector busy = cpuPerLabels.filter("mode", mode -> !IDLE_CPU_MODES.contains(mode)).sumWithout("cpu_busy_seconds", "cpu", "mode");
+			SeriesVector utilisation = counterDeltas.delta(busy, "cpu_busy_increase", updateDeltas)
+					.divide(counterDeltas.delta(total, "cpu_total_increase", updateDeltas), "container_cpu_utilisation_ratio");
+			addMetric(outputSamples, tagNames, utilisation, Type.GAUGE, "Share of CPU time spent outside idle and iowait since the previous collection.");
+		}
+		addRenamed(outputSamples, tagNames, nodeExporterSamples, index, "node_memory_Mapped_bytes", "container_memory_mapped_file");
 		
 		//node_filesystem_size node_filesystem_avail
 		
 		return outputSamples;
 	}
 	
-	private void addRenamed(Map<String, MetricFamilySamples> outputSamples, Map<String, MetricFamilySamples> nodeExporterSamples, String originalName, String newName) {
-		addRenamed(outputSamples, nodeExporterSamples, originalName, newName, null);
+	private void addRenamed(Map<String, MetricFamilySamples> outputSamples, Set<String> tagNames, Map<String, MetricFamilySamples> nodeExporterSamples, SeriesIndex index, String originalName, String newName) {
+		addRenamed(outputSamples, tagNames, nodeExporterSamples, index, originalName, newName, null);
 	}
 	
-	private void addRenamed(Map<String, MetricFamilySamples> outputSamples, Map<String, MetricFamilySamples> nodeExporterSamples, String originalName, String newName, String newHelp) {
+	private void addRenamed(Map<String, MetricFamilySamples> outputSamples, Set<String> tagNames, Map<String, MetricFamilySamples> nodeExporterSamples, SeriesIndex index, String originalName, String newName, String newHelp) {
 		MetricFamilySamples originalMetric = nodeExporterSamples.get(originalName);
 		if(originalMetric != null) {
-			GroupedMetric renamedGroupedNewMetric = groupMetrics(originalMetric).rename(newName);
-			addMetric(outputSamples, renamedGroupedNewMetric, originalMetric.type, newHelp != null ? newHelp : originalMetric.help);
+			SeriesVector renamedNewMetric = SeriesVector.of(originalMetric, index).rename(newName);
+			addMetric(outputSamples, tagNames, renamedNewMetric, originalMetric.type, newHelp != null ? newHelp : originalMetric.help);
 		}
 	}
 
-	private void addMetric(Map<String, MetricFamilySamples> outputSamples, GroupedMetric memUsageBytes, Type type, String help) {
-		final String newName = memUsageBytes.name;
-		List<Sample> samples = new ArrayList<>(memUsageBytes.groupedValues.size());
-		memUsageBytes.groupedValues.forEach((key, val) -> {
-			List<String> labelNames = new ArrayList<>(key.labels.size());
-			List<String> labelValues = new ArrayList<>(key.labels.size());
-			key.labels.forEach((labelKey, labelVal) -> {
-				labelNames.add(labelKey);
-				labelValues.add(labelVal);
-			});
-			Sample sample = new Sample(newName, labelNames, labelValues, val);
-			samples.add(sample);
-		});
-		outputSamples.put(newName, new MetricFamilySamples(newName, type, help, samples));
-	}
-
-	private GroupedMetric groupMetrics(MetricFamilySamples samples) {
-		Map<SampleKey, Double> grouped = new HashMap<>();
-		samples.samples.forEach(sample -> {
-			grouped.compute(new SampleKey(sample), (key, currentValue) -> {
-				if(currentValue == null)
-					return sample.value;
-				else
-					return currentValue+sample.value;
-			});
-		});
-		return new GroupedMetric(samples.name, grouped);
+	private void addMetric(Map<String, MetricFamilySamples> outputSamples, Set<String> tagNames, SeriesVector metric, Type type, String help) {
+		AggregationRule aggregation = aggregations.get(metric.name);
+		if (aggregation != null)
+			metric = aggregation.apply(metric, tagNames);
+		outputSamples.put(metric.name, metric.toFamily(type, help));
 	}
 	
-	private static class GroupedMetric {
-		public final String name;
-		public Map<SampleKey, Double> groupedValues;
-		
-		private GroupedMetric(String name, Map<SampleKey, Double> groupedValues) {
-			super();
-			this.name = name;
-			this.groupedValues = groupedValues;
-		}
-		
-		public GroupedMetric rename(String name) {
-			return new GroupedMetric(name, groupedValues);
-		}
-
-		public GroupedMetric minus(GroupedMetric other, String newName) {
-			Map<SampleKey, Double> grouped = new HashMap<>();
-			groupedValues.forEach((key,val) -> {
-				if(other.groupedValues.containsKey(key)) {
-					grouped.put(key, val-other.groupedValues.get(key));
-				} else {
-					grouped.put(key, val);
+	private static boolean matchesEtag(RawHttpRequest req, String etag) {
+		List<String> ifNoneMatch = req.getHeaders().get("If-None-Match");
+		if (ifNoneMatch == null) return false;
+		for (String header : ifNoneMatch) {
+			for (String tag : header.split(",")) {
+				tag = tag.trim();
+				if (tag.equals("*") || tag.equals(etag)) {
+					return true;
 				}
-			});
-			return new GroupedMetric(newName, grouped);
+			}
 		}
-		
-		public GroupedMetric plus(GroupedMetric other, String newName) {
-			Map<SampleKey, Double> grouped = new HashMap<>();
-			groupedValues.forEach((key,val) -> {
-				if(other.groupedValues.containsKey(key)) {
-					grouped.put(key, val+other.groupedValues.get(key));
-				} else {
-					grouped.put(key, val);
-				}
-			});
-			return new GroupedMetric(newName, grouped);
-		}
-		
-	}
-
-	private static class SampleKey {
-		public final String name;
-    public final Map<String,String> labels;
-    
-    public SampleKey(Sample sample) {
-    	this.name = sample.name;
-      this.labels = new HashMap<>();
-      for(int i = 0; i < sample.labelNames.size(); i++) {
-      	this.labels.put(sample.labelNames.get(i), sample.labelValues.get(i));
-      }
-    }
-    
-    public SampleKey(String name, Map<String,String> labels) {
-      this.name = name;
-      this.labels = labels;
-    }
-    
-    @Override
-    public boolean equals(Object obj) {
-      if (!(obj instanceof SampleKey)) {
-        return false;
-      }
-      SampleKey other = (SampleKey) obj;
-
-      return other.name.equals(name) && other.labels.equals(labels);
-    }
-
-    @Override
-    public int hashCode() {
-      int hash = 1;
-      hash = 37 * hash + name.hashCode();
-      hash = 37 * hash + labels.hashCode();
-      return hash;
-    }
-
-    @Override
-    public String toString() {
-      return "Name: " + name + " Labels: " + labels;
-    }
-    
+		return false;
 	}
 	
 	protected static boolean shouldUseCompression(RawHttpRequest req) {		
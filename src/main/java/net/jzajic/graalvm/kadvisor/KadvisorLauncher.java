@@ -2,6 +2,8 @@ package net.jzajic.graalvm.kadvisor;
 
 import java.io.IOException;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Optional;
 
 import net.jzajic.graalvm.client.DefaultDockerClient;
@@ -15,6 +17,7 @@ import picocli.CommandLine.Model.OptionSpec;
 import picocli.CommandLine.ParseResult;
 import rawhttp.core.RawHttp;
 import rawhttp.core.body.StringBody;
+import rawhttp.core.server.Router;
 import rawhttp.core.server.TcpRawHttpServer;
 
 public class KadvisorLauncher extends AbstractParseResultHandler<Integer> {
@@ -69,12 +72,208 @@ public class KadvisorLauncher extends AbstractParseResultHandler<Integer> {
 									.type(String.class)
 									.description("Path to agent binary file (node-exporter).")
 									.build())
+				.addOption(
+						OptionSpec
+								.builder("--agent-volume")
+									.paramLabel("agent-volume")
+									.type(String.class)
+									.description("Directory the agent is placed into once at startup, for containers mounting it from the host. Such containers declare the mount path by the label "+ContainerAgentManager.MOUNT_LABEL+" and the agent is only started in them, without an upload.")
+									.build())
+				.addOption(
+						OptionSpec
+								.builder("--agent-volume-source")
+									.paramLabel("agent-volume-source")
+									.type(String.class)
+									.description("Host path or Docker volume name of the agent volume as reported in the container mounts, when it differs from --agent-volume, e.g. with kadvisor running in a container.")
+									.build())
 				.addOption(
 						OptionSpec
 								.builder("--ipv6")
 									.paramLabel("ipv6")
 									.type(Boolean.class)
 									.description("Enable ipv6.")
+									.build())
+				.addOption(
+						OptionSpec
+								.builder("--scrape-threads")
+									.paramLabel("scrape-threads")
+									.type(Integer.class)
+									.defaultValue("16")
+									.description("Maximum number of container exporters scraped in parallel.")
+									.build())
+				.addOption(
+						OptionSpec
+								.builder("--scrape-connect-timeout")
+									.paramLabel("scrape-connect-timeout")
+									.type(Integer.class)
+									.defaultValue("1000")
+									.description("Connect timeout of a single container exporter in milliseconds.")
+									.build())
+				.addOption(
+						OptionSpec
+								.builder("--scrape-read-timeout")
+									.paramLabel("scrape-read-timeout")
+									.type(Integer.class)
+									.defaultValue("5000")
+									.description("Read timeout of a single container exporter in milliseconds.")
+									.build())
+				.addOption(
+						OptionSpec
+								.builder("--scrape-timeout")
+									.paramLabel("scrape-timeout")
+									.type(Integer.class)
+									.defaultValue("9000")
+									.description("Budget of the whole scrape in milliseconds, exporters which do not answer in time are left out.")
+									.build())
+				.addOption(
+						OptionSpec
+								.builder("--scrape-interval")
+									.paramLabel("scrape-interval")
+									.type(Integer.class)
+									.defaultValue("0")
+									.description("Interval of background scrapes in milliseconds, /metrics is then served from the latest snapshot. 0 scrapes on every request.")
+									.build())
+				.addOption(
+						OptionSpec
+								.builder("--max-staleness")
+									.paramLabel("max-staleness")
+									.type(Integer.class)
+									.defaultValue("60000")
+									.description("Maximum age in milliseconds of a background snapshot served to /metrics before falling back to a synchronous scrape.")
+									.build())
+				.addOption(
+						OptionSpec
+								.builder("--passthrough")
+									.paramLabel("passthrough")
+									.type(Boolean.class)
+									.description("Stream raw exporter metrics with injected container labels instead of the derived container metrics. Samples of one family from different containers are not grouped together.")
+									.build())
+				.addOption(
+						OptionSpec
+								.builder("--exporter-keepalive")
+									.paramLabel("exporter-keepalive")
+									.type(Integer.class)
+									.defaultValue("60000")
+									.description("Milliseconds an idle keep-alive connection to a container exporter is reused, 0 disables reuse.")
+									.build())
+				.addOption(
+						OptionSpec
+								.builder("--exporter-encoding")
+									.paramLabel("exporter-encoding")
+									.type(String.class)
+									.defaultValue("gzip")
+									.description("Content encoding requested from the exporters, gzip or identity.")
+									.build())
+				.addOption(
+						OptionSpec
+								.builder("--aggregate")
+									.paramLabel("aggregate")
+									.type(String[].class)
+									.description("Aggregation of an exported metric, e.g. 'container_cpu_usage_seconds_total:sum without(cpu)'. Container tags are always kept. Can be repeated.")
+									.build())
+				.addOption(
+						OptionSpec
+								.builder("--endpoint-max-series")
+									.paramLabel("endpoint-max-series")
+									.type(Integer.class)
+									.defaultValue("100000")
+									.description("Maximum number of series accepted from a single container exporter, 0 for no limit.")
+									.build())
+				.addOption(
+						OptionSpec
+								.builder("--endpoint-max-body")
+									.paramLabel("endpoint-max-body")
+									.type(Long.class)
+									.defaultValue("67108864")
+									.description("Maximum decoded response body size in bytes accepted from a single container exporter, 0 for no limit.")
+									.build())
+				.addOption(
+						OptionSpec
+								.builder("--endpoint-max-line")
+									.paramLabel("endpoint-max-line")
+									.type(Integer.class)
+									.defaultValue("65536")
+									.description("Maximum exposition line length in bytes accepted from a single container exporter, 0 for no limit.")
+									.build())
+				.addOption(
+						OptionSpec
+								.builder("--http-server")
+									.paramLabel("http-server")
+									.type(String.class)
+									.defaultValue("bounded")
+									.description("HTTP server implementation, 'bounded' for the selector based server with a bounded worker pool or 'rawhttp' for the thread per connection server.")
+									.build())
+				.addOption(
+						OptionSpec
+								.builder("--server-threads")
+									.paramLabel("server-threads")
+									.type(Integer.class)
+									.defaultValue("8")
+									.description("Number of HTTP worker threads of the bounded server, also the number of streamed responses rendered at once.")
+									.build())
+				.addOption(
+						OptionSpec
+								.builder("--server-queue")
+									.paramLabel("server-queue")
+									.type(Integer.class)
+									.defaultValue("64")
+									.description("Number of HTTP requests waiting for a worker of the bounded server, further requests are rejected with 503.")
+									.build())
+				.addOption(
+						OptionSpec
+								.builder("--server-keepalive")
+									.paramLabel("server-keepalive")
+									.type(Integer.class)
+									.defaultValue("30000")
+									.description("Time in ms an idle HTTP connection to the bounded server is kept open.")
+									.build())
+				.addOption(
+						OptionSpec
+								.builder("--server-io-timeout")
+									.paramLabel("server-io-timeout")
+									.type(Integer.class)
+									.defaultValue("10000")
+									.description("Time in ms the bounded server waits for a client to send a request or accept a response.")
+									.build())
+				.addOption(
+						OptionSpec
+								.builder("--docker-inspect-threads")
+									.paramLabel("docker-inspect-threads")
+									.type(Integer.class)
+									.defaultValue("8")
+									.description("Number of containers inspected in parallel after Docker events.")
+									.build())
+				.addOption(
+						OptionSpec
+								.builder("--docker-event-window")
+									.paramLabel("docker-event-window")
+									.type(Integer.class)
+									.defaultValue("250")
+									.description("Time in ms Docker events of one container are collected before they are handled together.")
+									.build())
+				.addOption(
+						OptionSpec
+								.builder("--agent-threads")
+									.paramLabel("agent-threads")
+									.type(Integer.class)
+									.defaultValue("8")
+									.description("Number of agents deployed into containers in parallel.")
+									.build())
+				.addOption(
+						OptionSpec
+								.builder("--agent-attempts")
+									.paramLabel("agent-attempts")
+									.type(Integer.class)
+									.defaultValue("5")
+									.description("Attempts to deploy the agent into a single container.")
+									.build())
+				.addOption(
+						OptionSpec
+								.builder("--agent-retry-backoff")
+									.paramLabel("agent-retry-backoff")
+									.type(Integer.class)
+									.defaultValue("1000")
+									.description("Time in ms before the first retry of a failed agent deployment, doubled with every further retry.")
 									.build());
 	
 	private static final CommandLine commandLine = new CommandLine(spec);
@@ -82,6 +281,8 @@ public class KadvisorLauncher extends AbstractParseResultHandler<Integer> {
 	private DockerClient dockerClient;
 	private WatchedContainerRegistry registry;
 	private ContainerAgentManager manager;
+	private ExporterScraper scraper;
+	private ExporterConnectionPool connectionPool;
 
 	private int port;
 	private String label;
@@ -89,7 +290,30 @@ public class KadvisorLauncher extends AbstractParseResultHandler<Integer> {
 	private String network;
 	private String dockerURI;
 	private String agent;
+	private String agentVolume;
+	private String agentVolumeSource;
 	private String exporterParams;
+	private int scrapeThreads;
+	private int scrapeConnectTimeout;
+	private int scrapeReadTimeout;
+	private int scrapeTimeout;
+	private int scrapeInterval;
+	private int maxStaleness;
+	private boolean passThrough;
+	private int exporterKeepAlive;
+	private String exporterEncoding;
+	private List<AggregationRule> aggregations;
+	private EndpointLimits endpointLimits;
+	private String httpServer;
+	private int serverThreads;
+	private int serverQueue;
+	private int serverKeepAlive;
+	private int serverIoTimeout;
+	private int dockerInspectThreads;
+	private int dockerEventWindow;
+	private int agentThreads;
+	private int agentAttempts;
+	private int agentRetryBackoff;
 	
 	public static void main(String[] args) throws IOException {
 		KadvisorLauncher instance = new KadvisorLauncher();
@@ -104,29 +328,53 @@ public class KadvisorLauncher extends AbstractParseResultHandler<Integer> {
 
 	private void start() throws IOException {				
 		dockerClient = new DefaultDockerClient(dockerURI);
-		registry = new WatchedContainerRegistry(dockerClient, label, runtime, network);
-		manager = new ContainerAgentManager(dockerClient, Paths.get(this.agent), this.exporterParams);
+		KadvisorMetrics metrics = new KadvisorMetrics();
+		registry = new WatchedContainerRegistry(dockerClient, label, runtime, network, metrics, dockerInspectThreads, dockerEventWindow);
+		manager = new ContainerAgentManager(dockerClient, Paths.get(this.agent), agentVolume == null ? null : Paths.get(agentVolume), agentVolumeSource, this.exporterParams, agentThreads, agentAttempts, agentRetryBackoff, metrics);
 		registry.addListener(manager);
 		
 		RawHttp http = new RawHttp();
-		TcpRawHttpServer server = new TcpRawHttpServer(port);
-		HTTPMetricHandler handler = new HTTPMetricHandler(registry);
+		connectionPool = new ExporterConnectionPool(scrapeThreads, exporterKeepAlive);
+		registry.addListener(connectionPool);
+		registry.addListener(metrics);
+		LabelInterner interner = new LabelInterner();
+		registry.addListener(interner);
+		scraper = new ExporterScraper(scrapeThreads, connectionPool, scrapeConnectTimeout, scrapeReadTimeout, scrapeTimeout, !"identity".equalsIgnoreCase(exporterEncoding), metrics, interner, endpointLimits);
+		HTTPMetricHandler handler = new HTTPMetricHandler(registry, scraper, passThrough, aggregations, metrics, serverThreads);
+		if (scrapeInterval > 0 && !passThrough) {
+			handler.startCollecting(scrapeInterval, maxStaleness);
+		}
 		
-		server.start(req -> {
+		Router router = req -> {
 			if(req.getUri().getPath().equals("/metrics")) {
 				return handler.handle(req);
+			} else if(req.getUri().getPath().equals("/kadvisor/metrics")) {
+				return handler.handleSelf();
 			} else {
-				return Optional.of(http.parseResponse("HTTP/1.0 404 Not Found\n" +
+				return Optional.of(http.parseResponse("HTTP/1.1 404 Not Found\n" +
             "Content-Type: text/plain").withBody(new StringBody("Content was not found")));
 			}
-		});
+		};
+		Runnable stopServer;
+		if ("rawhttp".equalsIgnoreCase(httpServer)) {
+			TcpRawHttpServer server = new TcpRawHttpServer(port);
+			server.start(router);
+			stopServer = server::stop;
+		} else {
+			BoundedHttpServer server = new BoundedHttpServer(http, port, serverThreads, serverQueue, serverKeepAlive, serverIoTimeout);
+			server.start(router);
+			stopServer = server::stop;
+		}
 		Runtime.getRuntime().addShutdownHook(new Thread()
     {
         @Override
         public void run()
         {
         		System.out.println("INTERRUPTED, EXITING");
-          	server.stop();
+          	stopServer.run();
+          	handler.stop();
+          	scraper.stop();
+          	connectionPool.stop();
           	registry.stop();
         }
     });
@@ -144,6 +392,42 @@ public class KadvisorLauncher extends AbstractParseResultHandler<Integer> {
 		this.runtime = parseResult.matchedOptionValue("runtime", null);
 		this.network = parseResult.matchedOptionValue("network", null);
 		this.agent = parseResult.matchedOptionValue("agent", null);
+		this.agentVolume = parseResult.matchedOptionValue("agent-volume", null);
+		this.agentVolumeSource = parseResult.matchedOptionValue("agent-volume-source", null);
+		this.scrapeThreads = parseResult.matchedOptionValue("scrape-threads", 16);
+		this.scrapeConnectTimeout = parseResult.matchedOptionValue("scrape-connect-timeout", 1000);
+		this.scrapeReadTimeout = parseResult.matchedOptionValue("scrape-read-timeout", 5000);
+		this.scrapeTimeout = parseResult.matchedOptionValue("scrape-timeout", 9000);
+		this.scrapeInterval = parseResult.matchedOptionValue("scrape-interval", 0);
+		this.maxStaleness = parseResult.matchedOptionValue("max-staleness", 60000);
+		this.passThrough = parseResult.matchedOptionValue("passthrough", false);
+		this.exporterKeepAlive = parseResult.matchedOptionValue("exporter-keepalive", 60000);
+		this.exporterEncoding = parseResult.matchedOptionValue("exporter-encoding", "gzip");
+		this.endpointLimits = new EndpointLimits(
+				parseResult.matchedOptionValue("endpoint-max-series", 100000),
+				parseResult.matchedOptionValue("endpoint-max-body", 67108864L),
+				parseResult.matchedOptionValue("endpoint-max-line", 65536));
+		this.httpServer = parseResult.matchedOptionValue("http-server", "bounded");
+		if (!"bounded".equalsIgnoreCase(httpServer) && !"rawhttp".equalsIgnoreCase(httpServer)) {
+			throw new ExecutionException(commandLine, "Unknown HTTP server '" + httpServer + "', expected 'bounded' or 'rawhttp'");
+		}
+		this.serverThreads = parseResult.matchedOptionValue("server-threads", 8);
+		this.serverQueue = parseResult.matchedOptionValue("server-queue", 64);
+		this.serverKeepAlive = parseResult.matchedOptionValue("server-keepalive", 30000);
+		this.serverIoTimeout = parseResult.matchedOptionValue("server-io-timeout", 10000);
+		this.dockerInspectThreads = parseResult.matchedOptionValue("docker-inspect-threads", 8);
+		this.dockerEventWindow = parseResult.matchedOptionValue("docker-event-window", 250);
+		this.agentThreads = parseResult.matchedOptionValue("agent-threads", 8);
+		this.agentAttempts = parseResult.matchedOptionValue("agent-attempts", 5);
+		this.agentRetryBackoff = parseResult.matchedOptionValue("agent-retry-backoff", 1000);
+		this.aggregations = new ArrayList<>();
+		try {
+			for (String rule : parseResult.matchedOptionValue("aggregate", new String[0])) {
+				this.aggregations.add(AggregationRule.parse(rule));
+			}
+		} catch (IllegalArgumentException e) {
+			throw new ExecutionException(commandLine, e.getMessage());
+		}
 		this.exporterParams = System.getenv("NODE_EXPORTER_PARAMS");
 		if (this.agent == null) {
 			throw new ExecutionException(commandLine, "Agent required");
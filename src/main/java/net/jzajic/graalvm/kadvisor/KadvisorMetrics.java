@@ -0,0 +1,253 @@
+package net.jzajic.graalvm.kadvisor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+import io.prometheus.client.Collector.MetricFamilySamples;
+import io.prometheus.client.Collector.MetricFamilySamples.Sample;
+import io.prometheus.client.Collector.Type;
+import net.jzajic.graalvm.client.messages.ContainerInfo;
+import net.jzajic.graalvm.kadvisor.WatchedContainerRegistry.ContainerListener;
+import net.jzajic.graalvm.kadvisor.WatchedContainerRegistry.Endpoint;
+
+/**
+ * Counters of kadvisor itself, exported together with the container metrics.
+ * Updated from the scraping threads without locking. Per container counters
+ * are dropped when the container is removed.
+ * <p>
+ * The histograms of the hot paths are only exported by {@link #collectAll()}
+ * on <code>/kadvisor/metrics</code>, which is answered without scraping the
+ * containers. Recording an observation is a bucket search and two
+ * {@link LongAdder} increments.
+ */
+public class KadvisorMetrics implements ContainerListener {
+
+	/**
+	 * Response body bytes received from the exporters, as sent on the wire.
+	 */
+	final LongAdder scrapeWireBytes = new LongAdder();
+	/**
+	 * Response body bytes received from the exporters after decompression.
+	 */
+	final LongAdder scrapeDecodedBytes = new LongAdder();
+	/**
+	 * Exceeded endpoint limits per container address and limit.
+	 */
+	private final Map<String, Map<String, LimitCounter>> limitExceeded = new ConcurrentHashMap<>();
+	/**
+	 * Scrape latency and sample count per container address.
+	 */
+	private final Map<String, EndpointStats> endpointStats = new ConcurrentHashMap<>();
+
+	/**
+	 * Bytes of the /metrics response bodies, after compression.
+	 */
+	final LongAdder responseBytes = new LongAdder();
+	/**
+	 * Parsing or relabeling of a single exporter body.
+	 */
+	final Histogram parseDuration = new Histogram(LATENCY_BUCKETS);
+	/**
+	 * Derivation of the container metrics from the merged exporter samples.
+	 */
+	final Histogram computeDuration = new Histogram(LATENCY_BUCKETS);
+	/**
+	 * Rendering of a snapshot to the text exposition format.
+	 */
+	final Histogram renderDuration = new Histogram(LATENCY_BUCKETS);
+	/**
+	 * Gzip compression of a rendered snapshot.
+	 */
+	final Histogram gzipDuration = new Histogram(LATENCY_BUCKETS);
+	/**
+	 * Delay between a Docker event and the start of its handling.
+	 */
+	final Histogram dockerEventLag = new Histogram(LAG_BUCKETS);
+	/**
+	 * Time from a container being added until its agent is started, including
+	 * waiting for a deployment thread and retries.
+	 */
+	final Histogram agentDeployDuration = new Histogram(LAG_BUCKETS);
+	final LongAdder agentDeployments = new LongAdder();
+	final LongAdder agentDeployRetries = new LongAdder();
+	final LongAdder agentDeployFailures = new LongAdder();
+	final LongAdder agentCopiesSkipped = new LongAdder();
+	final LongAdder agentMountedStarts = new LongAdder();
+
+	private static final double[] LATENCY_BUCKETS = { .0005, .001, .0025, .005, .01, .025, .05, .1, .25, .5, 1, 2.5, 5, 10 };
+	private static final double[] LAG_BUCKETS = { .01, .05, .1, .25, .5, 1, 2.5, 5, 10, 30, 60 };
+
+	@Override
+	public void added(String ipAddress, ContainerInfo info) {
+	}
+
+	@Override
+	public void removed(String ipAddress, ContainerInfo info) {
+		limitExceeded.remove(ipAddress);
+		endpointStats.remove(ipAddress);
+	}
+
+	/**
+	 * Records the duration of a scrape of the endpoint, including reading the
+	 * body.
+	 */
+	void endpointScraped(Endpoint endpoint, long durationNanos) {
+		endpointStats(endpoint).duration.observeNanos(durationNanos);
+	}
+
+	/**
+	 * Records the number of samples parsed from the latest scrape of the
+	 * endpoint.
+	 */
+	void endpointSamples(Endpoint endpoint, int samples) {
+		endpointStats(endpoint).samples = samples;
+	}
+
+	private EndpointStats endpointStats(Endpoint endpoint) {
+		EndpointStats stats = endpointStats.get(endpoint.ipAddress);
+		if (stats == null)
+			stats = endpointStats.computeIfAbsent(endpoint.ipAddress, ip -> new EndpointStats(endpoint.tags.get("name")));
+		return stats;
+	}
+
+	/**
+	 * Counts an exceeded limit of the endpoint.
+	 *
+	 * @param limit
+	 *          One of the limit names of {@link EndpointLimits}.
+	 */
+	void limitExceeded(Endpoint endpoint, String limit) {
+		limitExceeded.computeIfAbsent(endpoint.ipAddress, ip -> new ConcurrentHashMap<>())
+				.computeIfAbsent(limit, l -> new LimitCounter(endpoint.tags.get("name"), l))
+					.count.increment();
+	}
+
+	public List<MetricFamilySamples> collect() {
+		List<MetricFamilySamples> families = new ArrayList<>();
+		families.add(counter("kadvisor_scrape_wire_bytes_total", "Exporter response body bytes received on the wire.", scrapeWireBytes.sum()));
+		families.add(counter("kadvisor_scrape_decoded_bytes_total", "Exporter response body bytes after decompression.", scrapeDecodedBytes.sum()));
+		families.add(counter("kadvisor_agent_deployments_total", "Agents deployed into containers.", agentDeployments.sum()));
+		families.add(counter("kadvisor_agent_deploy_retries_total", "Failed agent deployments retried later.", agentDeployRetries.sum()));
+		families.add(counter("kadvisor_agent_deploy_failures_total", "Agent deployments given up after the last attempt.", agentDeployFailures.sum()));
+		families.add(counter("kadvisor_agent_copies_skipped_total", "Agent deployments without upload because the container already held the same agent.", agentCopiesSkipped.sum()));
+		families.add(counter("kadvisor_agent_mounted_starts_total", "Agent deployments started from the agent volume mounted into the container.", agentMountedStarts.sum()));
+		List<Sample> limitSamples = new ArrayList<>();
+		limitExceeded.values().forEach(counters -> counters.values().forEach(counter -> {
+			limitSamples.add(new Sample("kadvisor_endpoint_limit_exceeded_total", LIMIT_LABELS, Arrays.asList(counter.name, counter.limit), counter.count.sum()));
+		}));
+		families.add(new MetricFamilySamples("kadvisor_endpoint_limit_exceeded_total", Type.COUNTER, "Scrapes truncated because the container exporter exceeded a limit.", limitSamples));
+		return families;
+	}
+
+	/**
+	 * @return The counters of {@link #collect()} followed by the histograms of
+	 *         the hot paths.
+	 */
+	public List<MetricFamilySamples> collectAll() {
+		List<MetricFamilySamples> families = collect();
+		families.add(counter("kadvisor_response_bytes_total", "Metrics response body bytes sent to clients.", responseBytes.sum()));
+		List<Sample> durationSamples = new ArrayList<>();
+		List<Sample> sampleCounts = new ArrayList<>();
+		endpointStats.values().forEach(stats -> {
+			List<String> labelValues = Collections.singletonList(stats.name);
+			stats.duration.addSamples("kadvisor_endpoint_scrape_duration_seconds", NAME_LABEL, labelValues, durationSamples);
+			sampleCounts.add(new Sample("kadvisor_endpoint_samples", NAME_LABEL, labelValues, stats.samples));
+		});
+		families.add(new MetricFamilySamples("kadvisor_endpoint_scrape_duration_seconds", Type.HISTOGRAM, "Duration of the container exporter scrapes.", durationSamples));
+		families.add(new MetricFamilySamples("kadvisor_endpoint_samples", Type.GAUGE, "Samples parsed from the latest scrape of the container exporter.", sampleCounts));
+		families.add(parseDuration.toFamily("kadvisor_parse_duration_seconds", "Duration of parsing or relabeling a single exporter response."));
+		families.add(computeDuration.toFamily("kadvisor_compute_duration_seconds", "Duration of deriving the container metrics from the exporter samples."));
+		families.add(renderDuration.toFamily("kadvisor_render_duration_seconds", "Duration of rendering a snapshot to the text format."));
+		families.add(gzipDuration.toFamily("kadvisor_gzip_duration_seconds", "Duration of compressing a rendered snapshot."));
+		families.add(dockerEventLag.toFamily("kadvisor_docker_event_lag_seconds", "Delay between a Docker event and the start of its handling."));
+		families.add(agentDeployDuration.toFamily("kadvisor_agent_deploy_duration_seconds", "Time from a container being added until its agent is started."));
+		return families;
+	}
+
+	private static final List<String> LIMIT_LABELS = Arrays.asList("name", "limit");
+	private static final List<String> NAME_LABEL = Collections.singletonList("name");
+
+	private static class EndpointStats {
+		final String name;
+		final Histogram duration = new Histogram(LATENCY_BUCKETS);
+		volatile int samples;
+
+		private EndpointStats(String name) {
+			this.name = name;
+		}
+	}
+
+	/**
+	 * Histogram with fixed buckets, recorded without locking. Bucket counts are
+	 * kept non-cumulative and summed up only when collected, so the values of
+	 * one collection may be slightly inconsistent with each other.
+	 */
+	static class Histogram {
+		private final double[] upperBounds;
+		private final LongAdder[] counts;
+		private final DoubleAdder sum = new DoubleAdder();
+
+		Histogram(double[] upperBounds) {
+			this.upperBounds = upperBounds;
+			this.counts = new LongAdder[upperBounds.length + 1];
+			for (int i = 0; i < counts.length; i++)
+				counts[i] = new LongAdder();
+		}
+
+		void observeNanos(long nanos) {
+			observe(nanos / (double) TimeUnit.SECONDS.toNanos(1));
+		}
+
+		void observe(double value) {
+			int bucket = 0;
+			while (bucket < upperBounds.length && value > upperBounds[bucket])
+				bucket++;
+			counts[bucket].increment();
+			sum.add(value);
+		}
+
+		private void addSamples(String name, List<String> labelNames, List<String> labelValues, List<Sample> samples) {
+			List<String> bucketNames = new ArrayList<>(labelNames);
+			bucketNames.add("le");
+			long cumulative = 0;
+			for (int i = 0; i < counts.length; i++) {
+				cumulative += counts[i].sum();
+				List<String> bucketValues = new ArrayList<>(labelValues);
+				bucketValues.add(i < upperBounds.length ? PrometheusTextFormatParser.doubleToGoString(upperBounds[i]) : "+Inf");
+				samples.add(new Sample(name + "_bucket", bucketNames, bucketValues, cumulative));
+			}
+			samples.add(new Sample(name + "_count", labelNames, labelValues, cumulative));
+			samples.add(new Sample(name + "_sum", labelNames, labelValues, sum.sum()));
+		}
+
+		private MetricFamilySamples toFamily(String name, String help) {
+			List<Sample> samples = new ArrayList<>(counts.length + 2);
+			addSamples(name, Collections.emptyList(), Collections.emptyList(), samples);
+			return new MetricFamilySamples(name, Type.HISTOGRAM, help, samples);
+		}
+	}
+
+	private static class LimitCounter {
+		final String name;
+		final String limit;
+		final LongAdder count = new LongAdder();
+
+		private LimitCounter(String name, String limit) {
+			this.name = name;
+			this.limit = limit;
+		}
+	}
+
+	private static MetricFamilySamples counter(String name, String help, double value) {
+		Sample sample = new Sample(name, Collections.emptyList(), Collections.emptyList(), value);
+		return new MetricFamilySamples(name, Type.COUNTER, help, Collections.singletonList(sample));
+	}
+
+}
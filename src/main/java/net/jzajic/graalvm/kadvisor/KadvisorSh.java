@@ -2,13 +2,19 @@ package net.jzajic.graalvm.kadvisor;
 
 public interface KadvisorSh {
 
-	public final String KADVISOR_SH = "'#!/bin/sh'\n" +
-	"'PATH=\"/bin:/usr/bin\"'\n" +
-	"'if [ -x \"$(command -v pkill)\" ]; then'\n" +
-	"'  pkill ${NODE_EXPORTER_NAME}'\n" +
-	"'elif [ -x \"$(command -v killall)\" ]; then'\n" +
-	"'  killall ${NODE_EXPORTER_NAME}'\n" +
-	"'fi'\n" +
-	"'exec ${NODE_EXPORTER_PATH} \"$@\"'\n";
+	/**
+	 * Start script of the agent, shipped as <code>kadvisor.sh</code> in the
+	 * agent archive or the agent volume. The binary is started from the
+	 * directory of the script, which is therefore executed by its absolute
+	 * path.
+	 */
+	public final String KADVISOR_SH = "#!/bin/sh\n" +
+	"PATH=\"/bin:/usr/bin\"\n" +
+	"if [ -x \"$(command -v pkill)\" ]; then\n" +
+	"  pkill ${NODE_EXPORTER_NAME}\n" +
+	"elif [ -x \"$(command -v killall)\" ]; then\n" +
+	"  killall ${NODE_EXPORTER_NAME}\n" +
+	"fi\n" +
+	"exec \"${0%/*}/${NODE_EXPORTER_NAME}\" \"$@\"\n";
 	
 }
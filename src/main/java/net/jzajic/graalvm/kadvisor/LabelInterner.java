@@ -0,0 +1,235 @@
+package net.jzajic.graalvm.kadvisor;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import net.jzajic.graalvm.client.messages.ContainerInfo;
+import net.jzajic.graalvm.kadvisor.PrometheusTextTokenizer.Line;
+import net.jzajic.graalvm.kadvisor.WatchedContainerRegistry.ContainerListener;
+import net.jzajic.graalvm.kadvisor.WatchedContainerRegistry.Endpoint;
+
+/**
+ * Interning of metric names, label strings and whole label sets, kept across
+ * scrapes so the steady state scrape of an unchanged exporter allocates no
+ * strings and no label lists.
+ * <p>
+ * There is one {@link Table} per container, looked up by the raw bytes of the
+ * exporter output. Label sets already contain the container tags and are
+ * shared by the samples of consecutive scrapes, so they must not be modified.
+ * A table is created when its container is added to the registry, dropped when
+ * it is removed, and entries not seen for a few scrapes are swept from it.
+ * Scrapes never create tables, a scrape still running for a removed container
+ * interns into a throwaway table.
+ */
+public class LabelInterner implements ContainerListener {
+
+	/**
+	 * Scrapes after which an entry not seen by any of them is evicted.
+	 */
+	private static final int EVICT_AFTER = 3;
+
+	private final Map<String, Table> tables = new ConcurrentHashMap<>();
+
+	@Override
+	public void added(String ipAddress, ContainerInfo info) {
+		tables.put(ipAddress, new Table(WatchedContainerRegistry.buildTags(info)));
+	}
+
+	@Override
+	public void removed(String ipAddress, ContainerInfo info) {
+		tables.remove(ipAddress);
+	}
+
+	/**
+	 * @return Table of the endpoint, a new one when the endpoint tags changed.
+	 *         An endpoint not added yet or already removed gets a table which
+	 *         is not kept.
+	 */
+	Table table(Endpoint endpoint) {
+		Table table = tables.computeIfPresent(endpoint.ipAddress,
+				(ipAddress, current) -> current.tags.equals(endpoint.tags) ? current : new Table(endpoint.tags));
+		return table != null ? table : new Table(endpoint.tags);
+	}
+
+	int size() {
+		return tables.size();
+	}
+
+	/**
+	 * Interned strings and label sets of a single container.
+	 */
+	static class Table {
+		private final Map<String, String> tags;
+		private final Map<ByteKey, Entry<String>> names = new ConcurrentHashMap<>();
+		private final Map<ByteKey, String> strings = new ConcurrentHashMap<>();
+		private final Map<ByteKey, Entry<Labels>> labelSets = new ConcurrentHashMap<>();
+		private final Labels tagsOnly;
+		private volatile int generation;
+
+		Table(Map<String, String> tags) {
+			this.tags = tags;
+			List<String> tagNames = new ArrayList<>(tags.size());
+			List<String> tagValues = new ArrayList<>(tags.size());
+			tags.forEach((name, value) -> {
+				tagNames.add(intern(name));
+				tagValues.add(intern(value));
+			});
+			this.tagsOnly = new Labels(tagNames, tagValues);
+		}
+
+		/**
+		 * @return Interned metric name of a sample line.
+		 */
+		String name(Line line) {
+			byte[] buf = line.buffer();
+			Entry<String> entry = names.get(new ByteKey(buf, line.nameStart, line.nameEnd));
+			if (entry == null) {
+				ByteKey key = new ByteKey(buf, line.nameStart, line.nameEnd).copy();
+				entry = new Entry<>(intern(key, line.name()));
+				names.put(key, entry);
+			}
+			entry.lastSeen = generation;
+			return entry.value;
+		}
+
+		/**
+		 * @return Interned labels of a sample line followed by the container
+		 *         tags.
+		 */
+		Labels labels(Line line) {
+			if (!line.hasLabels())
+				return tagsOnly;
+			byte[] buf = line.buffer();
+			Entry<Labels> entry = labelSets.get(new ByteKey(buf, line.labelsStart, line.labelsEnd));
+			if (entry == null) {
+				int size = line.labelCount() + tagsOnly.names.size();
+				List<String> labelNames = new ArrayList<>(size);
+				List<String> labelValues = new ArrayList<>(size);
+				for (int i = 0; i < line.labelCount(); i++) {
+					labelNames.add(intern(line.labelName(i)));
+					labelValues.add(intern(line.labelValue(i)));
+				}
+				labelNames.addAll(tagsOnly.names);
+				labelValues.addAll(tagsOnly.values);
+				entry = new Entry<>(new Labels(labelNames, labelValues));
+				labelSets.put(new ByteKey(buf, line.labelsStart, line.labelsEnd).copy(), entry);
+			}
+			entry.lastSeen = generation;
+			return entry.value;
+		}
+
+		/**
+		 * Ends a scrape of the container and sweeps the entries not seen by the
+		 * last {@link LabelInterner#EVICT_AFTER} scrapes.
+		 */
+		void endScrape() {
+			int current = generation;
+			generation = current + 1;
+			int oldest = current - EVICT_AFTER;
+			boolean evicted = names.values().removeIf(entry -> entry.lastSeen <= oldest);
+			evicted |= labelSets.values().removeIf(entry -> entry.lastSeen <= oldest);
+			if (evicted) {
+				// keep only the strings still referenced
+				strings.clear();
+				tagsOnly.names.forEach(this::intern);
+				tagsOnly.values.forEach(this::intern);
+				names.values().forEach(entry -> intern(entry.value));
+				labelSets.values().forEach(entry -> {
+					entry.value.names.forEach(this::intern);
+					entry.value.values.forEach(this::intern);
+				});
+			}
+		}
+
+		int labelSetCount() {
+			return labelSets.size();
+		}
+
+		private String intern(String value) {
+			return intern(new ByteKey(value.getBytes(StandardCharsets.UTF_8)), value);
+		}
+
+		private String intern(ByteKey key, String value) {
+			String existing = strings.putIfAbsent(key, value);
+			return existing != null ? existing : value;
+		}
+	}
+
+	/**
+	 * Interned label names and values of a sample, including the container
+	 * tags. The lists are immutable.
+	 */
+	static final class Labels {
+		final List<String> names;
+		final List<String> values;
+
+		private Labels(List<String> names, List<String> values) {
+			this.names = Collections.unmodifiableList(names);
+			this.values = Collections.unmodifiableList(values);
+		}
+	}
+
+	private static final class Entry<T> {
+		final T value;
+		volatile int lastSeen;
+
+		private Entry(T value) {
+			this.value = value;
+		}
+	}
+
+	/**
+	 * Region of a byte array used as a map key. Lookups wrap the tokenizer
+	 * buffer directly, only keys stored in a table own a copy of the bytes.
+	 */
+	private static final class ByteKey {
+		private final byte[] buf;
+		private final int start;
+		private final int end;
+		private final int hash;
+
+		private ByteKey(byte[] bytes) {
+			this(bytes, 0, bytes.length);
+		}
+
+		private ByteKey(byte[] buf, int start, int end) {
+			this.buf = buf;
+			this.start = start;
+			this.end = end;
+			int h = 1;
+			for (int i = start; i < end; i++)
+				h = 31 * h + buf[i];
+			this.hash = h;
+		}
+
+		private ByteKey copy() {
+			return new ByteKey(Arrays.copyOfRange(buf, start, end));
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof ByteKey))
+				return false;
+			ByteKey other = (ByteKey) obj;
+			int length = end - start;
+			if (hash != other.hash || length != other.end - other.start)
+				return false;
+			for (int i = 0; i < length; i++) {
+				if (buf[start + i] != other.buf[other.start + i])
+					return false;
+			}
+			return true;
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+	}
+
+}
@@ -0,0 +1,119 @@
+package net.jzajic.graalvm.kadvisor;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Collection;
+import java.util.function.Supplier;
+import java.util.zip.GZIPOutputStream;
+
+import com.google.common.base.Suppliers;
+import com.google.common.hash.Hashing;
+
+import io.prometheus.client.Collector.MetricFamilySamples;
+
+/**
+ * Immutable result of one collection over all watched containers, ready to be
+ * written to any number of clients.
+ * <p>
+ * The text exposition and its gzip encoding are rendered at most once per
+ * snapshot and the same byte arrays are handed to every client.
+ */
+public class MetricSnapshot {
+
+	public final Collection<MetricFamilySamples> families;
+	public final long timestamp;
+	private final KadvisorMetrics metrics;
+
+	private final Supplier<byte[]> plainBody = Suppliers.memoize(this::render);
+	private final Supplier<byte[]> gzipBody = Suppliers.memoize(this::compress);
+	private final Supplier<String> contentHash = Suppliers.memoize(() -> Hashing.murmur3_128().hashBytes(plainBody()).toString());
+
+	/**
+	 * @param metrics
+	 *          Records the rendering and compression times.
+	 */
+	public MetricSnapshot(Collection<MetricFamilySamples> families, long timestamp, KadvisorMetrics metrics) {
+		super();
+		this.families = families;
+		this.timestamp = timestamp;
+		this.metrics = metrics;
+	}
+
+	public boolean isFresh(long maxStaleness) {
+		return System.currentTimeMillis() - timestamp <= maxStaleness;
+	}
+
+	/**
+	 * @return Text format 0.0.4 exposition of this snapshot. Must not be
+	 *         modified.
+	 */
+	public byte[] plainBody() {
+		return plainBody.get();
+	}
+
+	/**
+	 * @return Gzip encoded {@link #plainBody()}. Must not be modified.
+	 */
+	public byte[] gzipBody() {
+		return gzipBody.get();
+	}
+
+	/**
+	 * @return Strong entity tag derived from the exposition content, distinct
+	 *         for the gzip encoded representation.
+	 */
+	public String etag(boolean gzip) {
+		return "\"" + contentHash.get() + (gzip ? "-gzip" : "") + "\"";
+	}
+
+	public String lastModified() {
+		return DateTimeFormatter.RFC_1123_DATE_TIME.format(Instant.ofEpochMilli(timestamp).atOffset(ZoneOffset.UTC));
+	}
+
+	/**
+	 * Writes the text format 0.0.4 exposition of this snapshot to the stream
+	 * without buffering the whole body.
+	 */
+	public void write(OutputStream output) throws IOException {
+		Writer writer = new OutputStreamWriter(output, StandardCharsets.UTF_8);
+		writer.write("# KADVISOR\n");
+		PrometheusTextFormatParser.write004(writer, families.iterator());
+		writer.flush();
+	}
+
+	private byte[] render() {
+		try {
+			long start = System.nanoTime();
+			ByteArrayOutputStream response = new ByteArrayOutputStream();
+			write(response);
+			metrics.renderDuration.observeNanos(System.nanoTime() - start);
+			return response.toByteArray();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private byte[] compress() {
+		try {
+			byte[] plain = plainBody();
+			long start = System.nanoTime();
+			ByteArrayOutputStream bos = new ByteArrayOutputStream(plain.length / 4);
+			try (GZIPOutputStream os = new GZIPOutputStream(bos)) {
+				os.write(plain);
+			}
+			metrics.gzipDuration.observeNanos(System.nanoTime() - start);
+			return bos.toByteArray();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+}
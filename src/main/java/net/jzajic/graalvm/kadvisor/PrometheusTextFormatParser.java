@@ -1,29 +1,27 @@
 
 package net.jzajic.graalvm.kadvisor;
 
-import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.io.StringWriter;
 import java.io.Writer;
-import java.nio.charset.Charset;
-import java.time.Instant;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.function.BiPredicate;
 import java.util.function.Consumer;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-
-import com.google.common.base.Splitter;
+import java.util.function.Predicate;
 
 import io.prometheus.client.Collector;
 import io.prometheus.client.Collector.MetricFamilySamples;
 import io.prometheus.client.Collector.MetricFamilySamples.Sample;
 import io.prometheus.client.Collector.Type;
+import net.jzajic.graalvm.kadvisor.EndpointLimits.LimitExceededException;
+import net.jzajic.graalvm.kadvisor.PrometheusTextTokenizer.Line;
 
 /**
  * Parses the Prometheus Text format.
@@ -33,17 +31,15 @@ import io.prometheus.client.Collector.Type;
  */
 public class PrometheusTextFormatParser {
 
-	public static final Pattern PATTERN = Pattern.compile("([^\\s{}]+|\\{[^{}]*\\})");
-
 	/**
 	 * Content-type for text version 0.0.4.
 	 */
 	public final static String CONTENT_TYPE_004 = "text/plain; version=0.0.4; charset=utf-8";
 
 	/**
-	 * UTF-8 charset. Used for decoding the given input stream.
+	 * Tokenizer per scraping thread, so its buffer is reused across scrapes.
 	 */
-	private static final Charset UTF_8 = Charset.forName("utf-8");
+	private final ThreadLocal<PrometheusTextTokenizer> tokenizer = ThreadLocal.withInitial(PrometheusTextTokenizer::new);
 
 	public List<MetricFamilySamples> parse(InputStream stream) {
 		List<MetricFamilySamples> resultList = new ArrayList<>();
@@ -52,30 +48,48 @@ public class PrometheusTextFormatParser {
 	}
 	
 	public void collect(InputStream singleStream, Map<String,MetricFamilySamples> output, Map<String, String> tags) {
-		parse(singleStream, samples -> {		
-			if(output.containsKey(samples.name)) {
-				MetricFamilySamples existingSamples = output.get(samples.name);
-				samples.samples.forEach(sample -> {
-					if(tags != null && !tags.isEmpty()) {
-						tags.forEach((key, value) -> {
-							sample.labelNames.add(key);
-							sample.labelValues.add(value);
-						});
-					}
-					existingSamples.samples.add(sample);
-				});
+		collect(singleStream, output, new LabelInterner.Table(tags != null ? tags : Collections.emptyMap()));
+	}
+	
+	/**
+	 * Parses the stream into the output, merging families of the same name.
+	 * Metric names and label sets, already including the container tags, are
+	 * taken from the interning table.
+	 */
+	public void collect(InputStream singleStream, Map<String,MetricFamilySamples> output, LabelInterner.Table table) {
+		collect(singleStream, output, table, null);
+	}
+	
+	/**
+	 * @param familyFilter
+	 *          Families to collect, the samples of other families are skipped
+	 *          without being parsed. <code>null</code> collects all of them.
+	 */
+	public void collect(InputStream singleStream, Map<String,MetricFamilySamples> output, LabelInterner.Table table, Predicate<Line> familyFilter) {
+		collect(singleStream, output, table, familyFilter, EndpointLimits.NONE);
+	}
+	
+	/**
+	 * @param limits
+	 *          Limits of the endpoint. When one is exceeded, the output keeps the
+	 *          samples parsed until then and {@link LimitExceededException} is
+	 *          thrown.
+	 */
+	public void collect(InputStream singleStream, Map<String,MetricFamilySamples> output, LabelInterner.Table table, Predicate<Line> familyFilter,
+			EndpointLimits limits) {
+		FamilyBuilder builder = new FamilyBuilder(samples -> {
+			MetricFamilySamples existingSamples = output.get(samples.name);
+			if(existingSamples != null) {
+				existingSamples.samples.addAll(samples.samples);
 			} else {
-				if(tags != null && !tags.isEmpty()) {
-					samples.samples.forEach(sample -> {
-						tags.forEach((key, value) -> {
-							sample.labelNames.add(key);
-							sample.labelValues.add(value);
-						});
-					});
-				}
 				output.put(samples.name, samples);
 			}
-		}, null);
+		}, null, table, familyFilter, limits.seriesCounter());
+		try {
+			tokenizer.get().tokenize(limits.limitBody(singleStream), builder, limits.maxLineLength);
+		} finally {
+			builder.addLastType();
+		}
 	}
 	
 	public void enhance(InputStream singleStream, Writer response, Map<String, String> tags) {
@@ -115,229 +129,283 @@ public class PrometheusTextFormatParser {
 		});
 	}
 
-	public void parse(InputStream stream, Consumer<MetricFamilySamples> collector, Callback callback) {	
-		BufferedReader reader = new BufferedReader(new InputStreamReader(stream, UTF_8));
-		String line;
-		int lineNumber = 0;
-		try {
-			TypeLine typeLine = null;
-			String help = null;
-			List<Sample> samples = null;
-			while ((line = reader.readLine()) != null) {
-				lineNumber++;
-				if (line.isEmpty()) {
-					if (callback != null)
-						callback.emptyLine();
-					continue;
-				}
-				if (isHelpLine(line)) {
-					addLastType(typeLine, help, samples, collector);
-					typeLine = null;
-					help = parseHelpLine(line);
-					if (callback != null)
-						callback.helpLine(line, help);
-					continue;
-				}
-				if (isTypeLine(line)) {
-					addLastType(typeLine, help, samples, collector);
-					typeLine = parseTypeLine(line);
-					samples = new ArrayList<>();
-					if (callback != null)
-						callback.typeLine(line, typeLine);
-					continue;
-				}
-				if (isCommentLine(line)) {
-					if (callback != null)
-						callback.commentLine(line);
-					continue;
-				}
+	/**
+	 * Copies the exposition from the stream to the output, appending the given
+	 * pre-rendered label fragment to every sample. HELP and TYPE lines of
+	 * families already present in <code>writtenFamilies</code> are dropped,
+	 * other comments and empty lines are dropped as well. Works on the raw bytes,
+	 * no samples are materialized.
+	 */
+	public void relabel(InputStream singleStream, OutputStream output, byte[] labelFragment, Set<String> writtenFamilies) {
+		relabel(singleStream, output, labelFragment, writtenFamilies, null, null);
+	}
+	
+	/**
+	 * @param familyFilter
+	 *          Families to copy, the other ones are skipped without parsing
+	 *          their samples. <code>null</code> copies all of them.
+	 * @param sampleFilter
+	 *          Tested with the family name and the sample line, only the
+	 *          accepted samples are copied. <code>null</code> copies all of
+	 *          them.
+	 */
+	public void relabel(InputStream singleStream, OutputStream output, byte[] labelFragment, Set<String> writtenFamilies,
+			Predicate<Line> familyFilter, BiPredicate<String, Line> sampleFilter) {
+		relabel(singleStream, output, labelFragment, writtenFamilies, familyFilter, sampleFilter, EndpointLimits.NONE);
+	}
+	
+	/**
+	 * @param limits
+	 *          Series and line length limits of the endpoint. When one is
+	 *          exceeded, the samples copied until then stay in the output and
+	 *          {@link LimitExceededException} is thrown.
+	 */
+	public void relabel(InputStream singleStream, OutputStream output, byte[] labelFragment, Set<String> writtenFamilies,
+			Predicate<Line> familyFilter, BiPredicate<String, Line> sampleFilter, EndpointLimits limits) {
+		final EndpointLimits.SeriesCounter seriesCounter = limits.seriesCounter();
+		tokenizer.get().tokenize(singleStream, new PrometheusTextTokenizer.Handler() {
+			
+			private String lastFamily;
+			private String family;
+			private boolean skipping;
+
+			private boolean startFamily(Line line) {
+				family = line.name();
+				skipping = familyFilter != null && !familyFilter.test(line);
+				return !skipping;
+			}
+
+			@Override
+			public boolean wantsSample(Line line) {
+				if (!skipping && family == null && familyFilter != null)
+					skipping = !familyFilter.test(line);
+				return !skipping;
+			}
 
-				// Example: http_requests_total{method="post",code="200"} 1027 1395066363000
-				Matcher matcher = PATTERN.matcher(line);
-				List<String> parts = new ArrayList<>(2);
-				String tagsPart = null;
-				while (matcher.find()) {
-					String group = matcher.group(1);
-					if (group.startsWith("{"))
-						tagsPart = group;
-					else
-						parts.add(group);
+			@Override
+			public void help(Line line) throws IOException {
+				if (!startFamily(line))
+					return;
+				String name = family;
+				if (writtenFamilies.add(name)) {
+					lastFamily = name;
+					writeLine(line);
 				}
-				// At least 2 parts, because timestamp is optional
-				if (parts.size() < 2) {
-					throw new RuntimeException("Expected at least 2 parts, found " + parts.size() + " at line " + lineNumber);
+			}
+
+			@Override
+			public void type(Line line) throws IOException {
+				if (!startFamily(line))
+					return;
+				String name = family;
+				if (name.equals(lastFamily) || writtenFamilies.add(name)) {
+					writeLine(line);
 				}
+				lastFamily = null;
+			}
 
-				String metricName = parts.get(0);
-				Instant timestamp = getMetricTimestamp(parts);
-				double value = getMetricValue(parts);
-				Map<String, String> tags = getMetricTags(tagsPart);
-				Sample point = addPoint(metricName, timestamp, value, tags);
-				samples.add(point);
-				if (callback != null)
-					callback.sample(point);
+			@Override
+			public void comment(Line line) {
 			}
-			addLastType(typeLine, help, samples, collector);
-		} catch (IOException e) {
-			throw new RuntimeException("Error at line " + lineNumber, e);
-		} catch (RuntimeException e) {
-			throw new RuntimeException("Error at line " + lineNumber, e);
-		}
 
-	}
+			@Override
+			public void sample(Line line) throws IOException {
+				if (sampleFilter != null && !sampleFilter.test(family != null ? family : line.name(), line))
+					return;
+				seriesCounter.add();
+				byte[] buf = line.buffer();
+				output.write(buf, line.nameStart, line.nameEnd - line.nameStart);
+				if (line.hasLabels()) {
+					// existing labels without braces and trailing comma
+					int from = line.labelsStart + 1;
+					int to = line.labelsEnd - 1;
+					while (to > from && (buf[to - 1] == ' ' || buf[to - 1] == '\t' || buf[to - 1] == ','))
+						to--;
+					output.write('{');
+					output.write(buf, from, to - from);
+					if (to > from && labelFragment.length > 0)
+						output.write(',');
+					output.write(labelFragment);
+					output.write('}');
+				} else if (labelFragment.length > 0) {
+					output.write('{');
+					output.write(labelFragment);
+					output.write('}');
+				}
+				output.write(' ');
+				output.write(buf, line.valueStart, line.end() - line.valueStart);
+				output.write('\n');
+			}
 
-	private void addLastType(TypeLine typeLine, String help, List<Sample> samples, Consumer<MetricFamilySamples> collector) {
-		if (typeLine != null && samples != null && collector != null) {
-			collector.accept(new MetricFamilySamples(typeLine.metricName, Type.valueOf(typeLine.type.toUpperCase()), help, samples));
-		}
+			@Override
+			public void emptyLine() {
+			}
+
+			private void writeLine(Line line) throws IOException {
+				output.write(line.buffer(), line.start(), line.end() - line.start());
+				output.write('\n');
+			}
+		}, limits.maxLineLength);
 	}
 
 	/**
-	 * Adds a point to the given metrics map. If the metric doesn't exist in the
-	 * map, it will be created.
-	 *
-	 * @param metrics
-	 *          Metric map.
-	 * @param metricName
-	 *          Name of the metric.
-	 * @param timestamp
-	 *          Timestamp of the point.
-	 * @param value
-	 *          Value of the point.
-	 * @param tags
-	 *          Tags for the metric. These are only used if the metric doesn't
-	 *          already exist in the metrics map.
+	 * Renders the tags as they appear between the braces of a sample, e.g.
+	 * <code>name="web",image="nginx"</code>.
 	 */
-	private Sample addPoint(String metricName, Instant timestamp, double value, Map<String, String> tags) {
-		List<String> labelNames = new ArrayList<>(tags.size());
-		List<String> labelValues = new ArrayList<>(tags.size());
-		for (Map.Entry<String, String> tagEntry : tags.entrySet()) {
-			labelNames.add(tagEntry.getKey());
-			labelValues.add(tagEntry.getValue());
+	public static String labelFragment(Map<String, String> tags) {
+		StringWriter writer = new StringWriter();
+		try {
+			boolean first = true;
+			for (Map.Entry<String, String> tag : tags.entrySet()) {
+				if (!first)
+					writer.write(',');
+				writer.write(tag.getKey());
+				writer.write("=\"");
+				writeEscapedLabelValue(writer, tag.getValue());
+				writer.write('"');
+				first = false;
+			}
+		} catch (IOException e) {
+			// not thrown by StringWriter
+			throw new IllegalStateException(e);
 		}
-		return new Sample(metricName, labelNames, labelValues, value, timestamp != null ? timestamp.toEpochMilli() : null);
+		return writer.toString();
+	}
+
+	public void parse(InputStream stream, Consumer<MetricFamilySamples> collector, Callback callback) {	
+		FamilyBuilder builder = new FamilyBuilder(collector, callback, null, null, null);
+		tokenizer.get().tokenize(stream, builder);
+		builder.addLastType();
 	}
 
 	/**
-	 * Extract the metric tags from the parts.
-	 *
-	 * @param parts
-	 *          Parts.
-	 * @return Metric tags.
+	 * Builds {@link MetricFamilySamples} out of the tokenized lines.
 	 */
-	private Map<String, String> getMetricTags(String tagString) {
-		if (tagString == null || tagString.isEmpty()) {
-			return new HashMap<>();
+	private static class FamilyBuilder implements PrometheusTextTokenizer.Handler {
+		private final Consumer<MetricFamilySamples> collector;
+		private final Callback callback;
+		private final LabelInterner.Table table;
+		private final Predicate<Line> familyFilter;
+		private final EndpointLimits.SeriesCounter seriesCounter;
+
+		private TypeLine typeLine = null;
+		private boolean skipping;
+		private String help = null;
+		private List<Sample> samples = null;
+
+		private FamilyBuilder(Consumer<MetricFamilySamples> collector, Callback callback, LabelInterner.Table table, Predicate<Line> familyFilter,
+				EndpointLimits.SeriesCounter seriesCounter) {
+			this.collector = collector;
+			this.callback = callback;
+			this.table = table;
+			this.familyFilter = familyFilter;
+			this.seriesCounter = seriesCounter;
 		}
-		int startSquare = tagString.indexOf('{');
-		int stopSquare = tagString.indexOf('}');
-		List<String> tags = Splitter.on(',').splitToList(tagString.substring(startSquare + 1, stopSquare));
-
-		Map<String, String> result = new HashMap<>();
 
-		for (String tag : tags) {
-			List<String> tagParts = Splitter.on('=').limit(2).splitToList(tag);
-			if (tagParts.size() != 2) {
-				throw new RuntimeException("Expected 2 tag parts, found " + tagParts.size() + " in tag '" + tag + "'");
-			}
-			String tagValue = tagParts.get(1);
-			if (!tagValue.startsWith("\"") && !tagValue.endsWith("\"")) {
-				throw new RuntimeException("Expected the tag value between \"s, but it isn't. Tag: '" + tag + "'");
+		/**
+		 * Ends the current family when a skipped one starts.
+		 */
+		private boolean skip(Line line) {
+			skipping = familyFilter != null && !familyFilter.test(line);
+			if (skipping) {
+				addLastType();
+				typeLine = null;
+				samples = null;
+				help = null;
 			}
+			return skipping;
+		}
 
-			String tagWithoutQuotes = tagValue.substring(1, tagValue.length() - 1);
-			result.put(tagParts.get(0), tagWithoutQuotes);
+		@Override
+		public boolean wantsSample(Line line) {
+			if (!skipping && typeLine == null && familyFilter != null) {
+				// sample without TYPE line starting an untyped family
+				skipping = !familyFilter.test(line);
+			}
+			return !skipping;
 		}
 
-		return result;
-	}
+		@Override
+		public void help(Line line) throws IOException {
+			if (skip(line))
+				return;
+			addLastType();
+			typeLine = null;
+			help = line.help();
+			if (callback != null)
+				callback.helpLine(line.toString(), help);
+		}
 
-	/**
-	 * Extracts the metric timestamp from the parts.
-	 *
-	 * @param parts
-	 *          Parts.
-	 * @return Metric timestamp.
-	 * 
-	 */
-	private Instant getMetricTimestamp(List<String> parts) {
-		// If the timestamp is missing, wall clock time is assumed.
-		if (parts.size() < 3) {
-			return null;
+		@Override
+		public void type(Line line) throws IOException {
+			if (skip(line))
+				return;
+			addLastType();
+			typeLine = new TypeLine(name(line), line.type());
+			samples = new ArrayList<>();
+			if (callback != null)
+				callback.typeLine(line.toString(), typeLine);
 		}
 
-		String value = parts.get(2);
-		try {
-			long epochTime = Long.parseLong(value);
-			return Instant.ofEpochMilli(epochTime);
-		} catch (NumberFormatException e) {
-			throw new RuntimeException("Can't convert '" + value + "' to long", e);
+		@Override
+		public void comment(Line line) throws IOException {
+			if (callback != null)
+				callback.commentLine(line.toString());
 		}
-	}
 
-	/**
-	 * Extracts the metric value from the given parts.
-	 *
-	 * @param parts
-	 *          Parts.
-	 * @return Metric value.
-	 * 
-	 */
-	private double getMetricValue(List<String> parts) {
-		String value = parts.get(1);
-		return getMetricValue(value);
-	}
+		@Override
+		public void sample(Line line) throws IOException {
+			if (seriesCounter != null)
+				seriesCounter.add();
+			if (typeLine == null) {
+				// sample without TYPE line, start an untyped family
+				typeLine = new TypeLine(name(line), Type.UNTYPED);
+				samples = new ArrayList<>();
+			}
+			Sample point;
+			if (table != null) {
+				LabelInterner.Labels labels = table.labels(line);
+				point = new Sample(table.name(line), labels.names, labels.values, line.value(), line.hasTimestamp() ? line.timestamp() : null);
+			} else {
+				point = addPoint(line);
+			}
+			samples.add(point);
+			if (callback != null)
+				callback.sample(point);
+		}
 
-	static double getMetricValue(String value) {
-		try {
-			return Double.parseDouble(value);
-		} catch (NumberFormatException e) {
-			throw new RuntimeException("Can't convert '" + value + "' to double", e);
+		@Override
+		public void emptyLine() throws IOException {
+			if (callback != null)
+				callback.emptyLine();
 		}
-	}
 
-	/**
-	 * Parses a type line.
-	 *
-	 * @param line
-	 *          Line to parse.
-	 * @return Parsed type line.
-	 */
-	private TypeLine parseTypeLine(String line) {
-		// Example: TYPE http_requests_total counter
-		List<String> parts = Splitter.on(' ').splitToList(line);
-		if (parts.size() != 4) {
-			throw new RuntimeException("Expected 4 parts in TYPE line, found " + parts.size() + " in line '" + line + "'");
+		private String name(Line line) {
+			return table != null ? table.name(line) : line.name();
 		}
 
-		// First two parts are '#' and 'TYPE'
-		return new TypeLine(parts.get(2), parts.get(3));
+		private void addLastType() {
+			if (typeLine != null && samples != null && collector != null) {
+				collector.accept(new MetricFamilySamples(typeLine.metricName, typeLine.type, help != null ? help : "", samples));
+			}
+		}
 	}
 
 	/**
-	 * Parses a help line.
+	 * Creates a sample out of a tokenized sample line.
 	 *
 	 * @param line
-	 *          Line to parse.
-	 * @return Parsed type line.
+	 *          Tokenized sample line.
 	 */
-	private String parseHelpLine(String line) {
-		// Example: HELP http_requests_total some help text
-		List<String> parts = Splitter.on(' ').limit(4).splitToList(line);
-		// First three parts are '#' and 'HELP' and 'metric_name'
-		return parts.get(3);
-	}
-
-	private boolean isCommentLine(String line) {
-		return line.startsWith("#");
-	}
-
-	private boolean isTypeLine(String line) {
-		return line.startsWith("# TYPE");
-	}
-
-	private boolean isHelpLine(String line) {
-		return line.startsWith("# HELP");
+	private static Sample addPoint(Line line) {
+		int labelCount = line.labelCount();
+		List<String> labelNames = new ArrayList<>(labelCount);
+		List<String> labelValues = new ArrayList<>(labelCount);
+		for (int i = 0; i < labelCount; i++) {
+			labelNames.add(line.labelName(i));
+			labelValues.add(line.labelValue(i));
+		}
+		return new Sample(line.name(), labelNames, labelValues, line.value(), line.hasTimestamp() ? line.timestamp() : null);
 	}
 
 	/**
@@ -345,9 +413,9 @@ public class PrometheusTextFormatParser {
 	 */
 	private static class TypeLine {
 		private final String metricName;
-		private final String type;
+		private final Type type;
 
-		public TypeLine(String metricName, String type) {
+		public TypeLine(String metricName, Type type) {
 			this.metricName = metricName;
 			this.type = type;
 		}
@@ -356,7 +424,7 @@ public class PrometheusTextFormatParser {
 			return metricName;
 		}
 
-		public String getType() {
+		public Type getType() {
 			return type;
 		}
 	}
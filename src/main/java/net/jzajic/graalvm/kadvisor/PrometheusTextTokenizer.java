@@ -0,0 +1,564 @@
+package net.jzajic.graalvm.kadvisor;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import io.prometheus.client.Collector.Type;
+import net.jzajic.graalvm.kadvisor.EndpointLimits.LimitExceededException;
+
+/**
+ * Byte level tokenizer of the Prometheus text format.
+ * <p>
+ * Works directly on the UTF-8 bytes of the exposition. Every line is split in
+ * place and handed to a {@link Handler} as a reusable {@link Line} view, so
+ * no Strings, Maps or boxed values are created unless the handler asks for
+ * them.
+ * <p>
+ * See
+ * https://prometheus.io/docs/instrumenting/exposition_formats/#text-format-details
+ */
+public class PrometheusTextTokenizer {
+
+	private static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+	private static final double[] POWERS_OF_TEN = {
+			1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+			1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22 };
+
+	/**
+	 * Largest mantissa which is still exactly representable as a double.
+	 */
+	private static final long MAX_EXACT_MANTISSA = 1L << 53;
+
+	private byte[] buffer;
+	private final Line line = new Line();
+
+	public PrometheusTextTokenizer() {
+		this(DEFAULT_BUFFER_SIZE);
+	}
+
+	public PrometheusTextTokenizer(int bufferSize) {
+		this.buffer = new byte[bufferSize];
+	}
+
+	/**
+	 * Tokenizes the whole stream, calling the handler for every line. The
+	 * tokenizer keeps its buffer between calls, it is not thread safe.
+	 */
+	public void tokenize(InputStream stream, Handler handler) {
+		tokenize(stream, handler, 0);
+	}
+
+	/**
+	 * @param maxLineLength
+	 *          Longest accepted line in bytes, a longer one fails with
+	 *          {@link LimitExceededException} before the buffer grows past it.
+	 *          Zero allows lines of any length.
+	 */
+	public void tokenize(InputStream stream, Handler handler, int maxLineLength) {
+		int lineNumber = 0;
+		int start = 0;
+		int scanned = 0;
+		int limit = 0;
+		try {
+			while (true) {
+				int newLine = indexOf(buffer, scanned, limit, (byte) '\n');
+				if (newLine < 0) {
+					// move the incomplete line to the beginning and read more
+					if (start > 0) {
+						System.arraycopy(buffer, start, buffer, 0, limit - start);
+						limit -= start;
+						start = 0;
+					}
+					scanned = limit;
+					if (maxLineLength > 0 && limit - start > maxLineLength) {
+						throw new LimitExceededException(EndpointLimits.LINE_LENGTH, "Line " + (lineNumber + 1) + " exceeds " + maxLineLength + " bytes");
+					}
+					if (limit == buffer.length) {
+						buffer = Arrays.copyOf(buffer, buffer.length * 2);
+					}
+					int read = stream.read(buffer, limit, buffer.length - limit);
+					if (read < 0) {
+						if (limit > start) {
+							lineNumber++;
+							tokenizeLine(buffer, start, limit, handler);
+						}
+						return;
+					}
+					limit += read;
+					continue;
+				}
+				lineNumber++;
+				if (maxLineLength > 0 && newLine - start > maxLineLength) {
+					throw new LimitExceededException(EndpointLimits.LINE_LENGTH, "Line " + lineNumber + " exceeds " + maxLineLength + " bytes");
+				}
+				tokenizeLine(buffer, start, newLine, handler);
+				start = scanned = newLine + 1;
+			}
+		} catch (LimitExceededException e) {
+			throw e;
+		} catch (UncheckedIOException e) {
+			// failed output of the handler, not an error of the input
+			throw e;
+		} catch (IOException e) {
+			throw new RuntimeException("Error at line " + lineNumber, e);
+		} catch (RuntimeException e) {
+			throw new RuntimeException("Error at line " + lineNumber, e);
+		}
+	}
+
+	private void tokenizeLine(byte[] buf, int start, int end, Handler handler) throws IOException {
+		if (end > start && buf[end - 1] == '\r')
+			end--;
+		line.reset(buf, start, end);
+		if (start == end) {
+			handler.emptyLine();
+			return;
+		}
+		if (buf[start] == '#') {
+			int pos = skipWhitespace(buf, start + 1, end);
+			if (pos == start + 1) {
+				handler.comment(line);
+			} else if (startsWith(buf, pos, end, "HELP ")) {
+				pos = parseName(buf, skipWhitespace(buf, pos + 5, end), end);
+				line.textStart = Math.min(pos + 1, end);
+				line.textEnd = end;
+				handler.help(line);
+			} else if (startsWith(buf, pos, end, "TYPE ")) {
+				pos = parseName(buf, skipWhitespace(buf, pos + 5, end), end);
+				line.textStart = skipWhitespace(buf, pos, end);
+				line.textEnd = skipToWhitespace(buf, line.textStart, end);
+				handler.type(line);
+			} else {
+				handler.comment(line);
+			}
+			return;
+		}
+		// Example: http_requests_total{method="post",code="200"} 1027 1395066363000
+		int pos = parseName(buf, skipWhitespace(buf, start, end), end);
+		if (!handler.wantsSample(line))
+			return;
+		if (pos < end && buf[pos] == '{') {
+			pos = parseLabels(buf, pos, end);
+		}
+		pos = skipWhitespace(buf, pos, end);
+		line.valueStart = pos;
+		line.valueEnd = skipToWhitespace(buf, pos, end);
+		if (line.valueStart == line.valueEnd) {
+			throw new RuntimeException("Expected sample value in line '" + line + "'");
+		}
+		pos = skipWhitespace(buf, line.valueEnd, end);
+		if (pos < end) {
+			line.timestampStart = pos;
+			line.timestampEnd = skipToWhitespace(buf, pos, end);
+		}
+		handler.sample(line);
+	}
+
+	private int parseName(byte[] buf, int pos, int end) {
+		line.nameStart = pos;
+		while (pos < end && buf[pos] != '{' && buf[pos] != ' ' && buf[pos] != '\t')
+			pos++;
+		line.nameEnd = pos;
+		if (line.nameStart == line.nameEnd) {
+			throw new RuntimeException("Expected metric name in line '" + line + "'");
+		}
+		return pos;
+	}
+
+	private int parseLabels(byte[] buf, int pos, int end) {
+		line.labelsStart = pos;
+		pos++;
+		while (true) {
+			pos = skipWhitespace(buf, pos, end);
+			if (pos >= end)
+				throw new RuntimeException("Unterminated label set in line '" + line + "'");
+			if (buf[pos] == '}')
+				break;
+			int nameStart = pos;
+			while (pos < end && buf[pos] != '=' && buf[pos] != ' ' && buf[pos] != '\t')
+				pos++;
+			int nameEnd = pos;
+			pos = skipWhitespace(buf, pos, end);
+			if (pos >= end || buf[pos] != '=')
+				throw new RuntimeException("Expected '=' after label name in line '" + line + "'");
+			pos = skipWhitespace(buf, pos + 1, end);
+			if (pos >= end || buf[pos] != '"')
+				throw new RuntimeException("Expected the label value between \"s in line '" + line + "'");
+			int valueStart = ++pos;
+			boolean escaped = false;
+			while (pos < end && buf[pos] != '"') {
+				if (buf[pos] == '\\') {
+					escaped = true;
+					pos++;
+				}
+				pos++;
+			}
+			if (pos >= end)
+				throw new RuntimeException("Unterminated label value in line '" + line + "'");
+			line.addLabel(nameStart, nameEnd, valueStart, pos, escaped);
+			pos = skipWhitespace(buf, pos + 1, end);
+			if (pos < end && buf[pos] == ',')
+				pos++;
+		}
+		line.labelsEnd = pos + 1;
+		return pos + 1;
+	}
+
+	private static int indexOf(byte[] buf, int from, int to, byte b) {
+		for (int i = from; i < to; i++) {
+			if (buf[i] == b)
+				return i;
+		}
+		return -1;
+	}
+
+	private static int skipWhitespace(byte[] buf, int pos, int end) {
+		while (pos < end && (buf[pos] == ' ' || buf[pos] == '\t'))
+			pos++;
+		return pos;
+	}
+
+	private static int skipToWhitespace(byte[] buf, int pos, int end) {
+		while (pos < end && buf[pos] != ' ' && buf[pos] != '\t')
+			pos++;
+		return pos;
+	}
+
+	private static boolean startsWith(byte[] buf, int pos, int end, String prefix) {
+		if (end - pos < prefix.length())
+			return false;
+		for (int i = 0; i < prefix.length(); i++) {
+			if (buf[pos + i] != prefix.charAt(i))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Parses a Go formatted float without allocating. Uses the exact fast path
+	 * when the decimal mantissa and power of ten are both exactly representable
+	 * as doubles and falls back to {@link Double#parseDouble(String)} otherwise.
+	 */
+	static double parseDouble(byte[] buf, int start, int end) {
+		int pos = start;
+		boolean negative = false;
+		if (pos < end && (buf[pos] == '-' || buf[pos] == '+')) {
+			negative = buf[pos] == '-';
+			pos++;
+		}
+		if (end - pos == 3) {
+			if (buf[pos] == 'I' && buf[pos + 1] == 'n' && buf[pos + 2] == 'f')
+				return negative ? Double.NEGATIVE_INFINITY : Double.POSITIVE_INFINITY;
+			if (buf[pos] == 'N' && buf[pos + 1] == 'a' && buf[pos + 2] == 'N')
+				return Double.NaN;
+		}
+		long mantissa = 0;
+		int exponent = 0;
+		int digits = 0;
+		boolean seenDot = false;
+		boolean exact = pos < end;
+		for (; pos < end; pos++) {
+			byte b = buf[pos];
+			if (b >= '0' && b <= '9') {
+				if (mantissa == 0 && b == '0') {
+					if (seenDot)
+						exponent--;
+					continue;
+				}
+				if (++digits > 18) {
+					exact = false;
+					break;
+				}
+				mantissa = mantissa * 10 + (b - '0');
+				if (seenDot)
+					exponent--;
+			} else if (b == '.' && !seenDot) {
+				seenDot = true;
+			} else if (b == 'e' || b == 'E') {
+				pos++;
+				boolean negativeExponent = false;
+				if (pos < end && (buf[pos] == '-' || buf[pos] == '+')) {
+					negativeExponent = buf[pos] == '-';
+					pos++;
+				}
+				if (pos == end || end - pos > 3) {
+					exact = false;
+					break;
+				}
+				int exp = 0;
+				for (; pos < end; pos++) {
+					if (buf[pos] < '0' || buf[pos] > '9') {
+						exact = false;
+						break;
+					}
+					exp = exp * 10 + (buf[pos] - '0');
+				}
+				exponent += negativeExponent ? -exp : exp;
+				break;
+			} else {
+				exact = false;
+				break;
+			}
+		}
+		if (exact && mantissa == 0) {
+			return negative ? -0.0d : 0.0d;
+		}
+		if (exact && mantissa < MAX_EXACT_MANTISSA && exponent >= -22 && exponent <= 22) {
+			double value = mantissa;
+			value = exponent < 0 ? value / POWERS_OF_TEN[-exponent] : value * POWERS_OF_TEN[exponent];
+			return negative ? -value : value;
+		}
+		String value = new String(buf, start, end - start, StandardCharsets.US_ASCII);
+		try {
+			return Double.parseDouble(value);
+		} catch (NumberFormatException e) {
+			throw new RuntimeException("Can't convert '" + value + "' to double", e);
+		}
+	}
+
+	static long parseLong(byte[] buf, int start, int end) {
+		int pos = start;
+		boolean negative = pos < end && buf[pos] == '-';
+		if (negative || (pos < end && buf[pos] == '+'))
+			pos++;
+		if (pos == end || end - pos > 18)
+			throw new RuntimeException("Can't convert '" + new String(buf, start, end - start, StandardCharsets.US_ASCII) + "' to long");
+		long value = 0;
+		for (; pos < end; pos++) {
+			byte b = buf[pos];
+			if (b < '0' || b > '9')
+				throw new RuntimeException("Can't convert '" + new String(buf, start, end - start, StandardCharsets.US_ASCII) + "' to long");
+			value = value * 10 + (b - '0');
+		}
+		return negative ? -value : value;
+	}
+
+	/**
+	 * Receives the tokenized lines. The {@link Line} is only valid during the
+	 * call and is reused for the next line.
+	 */
+	public static interface Handler {
+
+		void help(Line line) throws IOException;
+
+		void type(Line line) throws IOException;
+
+		void comment(Line line) throws IOException;
+
+		void sample(Line line) throws IOException;
+
+		void emptyLine() throws IOException;
+
+		/**
+		 * Called as soon as the metric name of a sample line is known. Returning
+		 * false skips the rest of the line without parsing its labels and value.
+		 */
+		default boolean wantsSample(Line line) {
+			return true;
+		}
+
+	}
+
+	/**
+	 * Reusable view of a single tokenized line. All positions are offsets into
+	 * {@link #buffer()}.
+	 */
+	public static final class Line {
+
+		private byte[] buf;
+		private int start;
+		private int end;
+
+		int nameStart;
+		int nameEnd;
+		int textStart;
+		int textEnd;
+		int labelsStart;
+		int labelsEnd;
+		int valueStart;
+		int valueEnd;
+		int timestampStart;
+		int timestampEnd;
+
+		private int labelCount;
+		private int[] labelPositions = new int[4 * 8];
+		private boolean[] labelEscaped = new boolean[8];
+
+		private void reset(byte[] buf, int start, int end) {
+			this.buf = buf;
+			this.start = start;
+			this.end = end;
+			nameStart = nameEnd = textStart = textEnd = -1;
+			labelsStart = labelsEnd = -1;
+			valueStart = valueEnd = -1;
+			timestampStart = timestampEnd = -1;
+			labelCount = 0;
+		}
+
+		private void addLabel(int nameStart, int nameEnd, int valueStart, int valueEnd, boolean escaped) {
+			if (labelEscaped.length == labelCount) {
+				labelPositions = Arrays.copyOf(labelPositions, labelPositions.length * 2);
+				labelEscaped = Arrays.copyOf(labelEscaped, labelEscaped.length * 2);
+			}
+			int i = labelCount * 4;
+			labelPositions[i] = nameStart;
+			labelPositions[i + 1] = nameEnd;
+			labelPositions[i + 2] = valueStart;
+			labelPositions[i + 3] = valueEnd;
+			labelEscaped[labelCount] = escaped;
+			labelCount++;
+		}
+
+		public byte[] buffer() {
+			return buf;
+		}
+
+		public int start() {
+			return start;
+		}
+
+		public int end() {
+			return end;
+		}
+
+		/**
+		 * @return Metric name of a sample, HELP or TYPE line.
+		 */
+		public String name() {
+			return new String(buf, nameStart, nameEnd - nameStart, StandardCharsets.UTF_8);
+		}
+
+		public boolean nameEquals(byte[] name) {
+			return regionEquals(nameStart, nameEnd, name);
+		}
+
+		public boolean nameStartsWith(byte[] prefix) {
+			return nameEnd - nameStart >= prefix.length && regionEquals(nameStart, nameStart + prefix.length, prefix);
+		}
+
+		public boolean hasLabels() {
+			return labelsStart >= 0;
+		}
+
+		public int labelCount() {
+			return labelCount;
+		}
+
+		public String labelName(int i) {
+			int nameStart = labelPositions[i * 4];
+			return new String(buf, nameStart, labelPositions[i * 4 + 1] - nameStart, StandardCharsets.UTF_8);
+		}
+
+		public boolean labelNameEquals(int i, byte[] name) {
+			return regionEquals(labelPositions[i * 4], labelPositions[i * 4 + 1], name);
+		}
+
+		/**
+		 * @return Unescaped label value.
+		 */
+		public String labelValue(int i) {
+			int valueStart = labelPositions[i * 4 + 2];
+			int valueEnd = labelPositions[i * 4 + 3];
+			if (!labelEscaped[i])
+				return new String(buf, valueStart, valueEnd - valueStart, StandardCharsets.UTF_8);
+			return unescape(valueStart, valueEnd, true);
+		}
+
+		public boolean labelValueEquals(int i, byte[] value) {
+			return !labelEscaped[i] && regionEquals(labelPositions[i * 4 + 2], labelPositions[i * 4 + 3], value);
+		}
+
+		public double value() {
+			return parseDouble(buf, valueStart, valueEnd);
+		}
+
+		public boolean hasTimestamp() {
+			return timestampStart >= 0;
+		}
+
+		public long timestamp() {
+			return parseLong(buf, timestampStart, timestampEnd);
+		}
+
+		/**
+		 * @return Unescaped docstring of a HELP line.
+		 */
+		public String help() {
+			return unescape(textStart, textEnd, false);
+		}
+
+		/**
+		 * @return Metric type of a TYPE line.
+		 */
+		public Type type() {
+			switch (textEnd - textStart) {
+			case 5:
+				if (regionEquals(textStart, textEnd, GAUGE))
+					return Type.GAUGE;
+				break;
+			case 7:
+				if (regionEquals(textStart, textEnd, COUNTER))
+					return Type.COUNTER;
+				if (regionEquals(textStart, textEnd, SUMMARY))
+					return Type.SUMMARY;
+				if (regionEquals(textStart, textEnd, UNTYPED))
+					return Type.UNTYPED;
+				break;
+			case 9:
+				if (regionEquals(textStart, textEnd, HISTOGRAM))
+					return Type.HISTOGRAM;
+				break;
+			}
+			throw new RuntimeException("Unknown metric type in line '" + this + "'");
+		}
+
+		private boolean regionEquals(int from, int to, byte[] other) {
+			if (to - from != other.length)
+				return false;
+			for (int i = 0; i < other.length; i++) {
+				if (buf[from + i] != other[i])
+					return false;
+			}
+			return true;
+		}
+
+		private String unescape(int from, int to, boolean quotes) {
+			StringBuilder builder = new StringBuilder(to - from);
+			int runStart = from;
+			for (int i = from; i < to; i++) {
+				if (buf[i] != '\\' || i + 1 == to)
+					continue;
+				byte next = buf[i + 1];
+				char replacement;
+				if (next == 'n')
+					replacement = '\n';
+				else if (next == '\\')
+					replacement = '\\';
+				else if (next == '"' && quotes)
+					replacement = '"';
+				else
+					continue;
+				builder.append(new String(buf, runStart, i - runStart, StandardCharsets.UTF_8)).append(replacement);
+				runStart = ++i + 1;
+			}
+			return builder.append(new String(buf, runStart, to - runStart, StandardCharsets.UTF_8)).toString();
+		}
+
+		@Override
+		public String toString() {
+			return new String(buf, start, end - start, StandardCharsets.UTF_8);
+		}
+
+		private static final byte[] GAUGE = "gauge".getBytes(StandardCharsets.US_ASCII);
+		private static final byte[] COUNTER = "counter".getBytes(StandardCharsets.US_ASCII);
+		private static final byte[] SUMMARY = "summary".getBytes(StandardCharsets.US_ASCII);
+		private static final byte[] UNTYPED = "untyped".getBytes(StandardCharsets.US_ASCII);
+		private static final byte[] HISTOGRAM = "histogram".getBytes(StandardCharsets.US_ASCII);
+
+	}
+
+}
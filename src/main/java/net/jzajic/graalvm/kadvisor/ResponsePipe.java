@@ -0,0 +1,162 @@
+package net.jzajic.graalvm.kadvisor;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded hand-over of a response body between the thread rendering it and
+ * the server thread writing it to the socket.
+ * <p>
+ * At most <code>maxChunks</code> chunks of <code>chunkSize</code> bytes are
+ * held at any time, so the memory of a response does not depend on its size.
+ * A failure of the renderer is rethrown to the reader instead of ending the
+ * body normally, so the client sees a broken response rather than a truncated
+ * one. Closing the pipe, once the body was written or writing it failed, makes
+ * a renderer still writing fail right away instead of waiting for the write
+ * timeout.
+ */
+class ResponsePipe extends InputStream {
+
+	private static final byte[] END = new byte[0];
+
+	private final BlockingQueue<byte[]> chunks;
+	private final int chunkSize;
+	private final long writeTimeout;
+
+	private volatile IOException failure;
+	private volatile boolean closed;
+
+	private byte[] current;
+	private int position;
+
+	/**
+	 * @param writeTimeout
+	 *          Milliseconds the renderer waits for the reader to take a chunk
+	 *          before it gives up.
+	 */
+	ResponsePipe(int maxChunks, int chunkSize, long writeTimeout) {
+		this.chunks = new ArrayBlockingQueue<>(maxChunks);
+		this.chunkSize = chunkSize;
+		this.writeTimeout = writeTimeout;
+	}
+
+	/**
+	 * @return Stream for the renderer. Closing it ends the body.
+	 */
+	OutputStream sink() {
+		return new Sink();
+	}
+
+	/**
+	 * Ends the body with the given failure.
+	 */
+	void fail(Exception e) {
+		failure = e instanceof IOException ? (IOException) e : new IOException(e);
+		chunks.clear();
+		chunks.offer(END);
+	}
+
+	@Override
+	public int read() throws IOException {
+		if (!fill())
+			return -1;
+		return current[position++] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0)
+			return 0;
+		if (!fill())
+			return -1;
+		int count = Math.min(len, current.length - position);
+		System.arraycopy(current, position, b, off, count);
+		position += count;
+		return count;
+	}
+
+	private boolean fill() throws IOException {
+		while (current == null || position == current.length) {
+			if (current == END)
+				return false;
+			try {
+				current = chunks.take();
+				position = 0;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while waiting for response body", e);
+			}
+			if (current == END && failure != null)
+				throw failure;
+		}
+		return true;
+	}
+
+	/**
+	 * Discards the body, the renderer fails on its next write. Clearing the
+	 * chunks also wakes a renderer waiting for room.
+	 */
+	@Override
+	public void close() {
+		closed = true;
+		chunks.clear();
+	}
+
+	private class Sink extends OutputStream {
+
+		private byte[] buffer = new byte[chunkSize];
+		private int count;
+
+		@Override
+		public void write(int b) throws IOException {
+			if (count == buffer.length)
+				flush();
+			buffer[count++] = (byte) b;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			while (len > 0) {
+				if (count == buffer.length)
+					flush();
+				int n = Math.min(len, buffer.length - count);
+				System.arraycopy(b, off, buffer, count, n);
+				count += n;
+				off += n;
+				len -= n;
+			}
+		}
+
+		@Override
+		public void flush() throws IOException {
+			if (count > 0) {
+				put(count == buffer.length ? buffer : Arrays.copyOf(buffer, count));
+				if (count == buffer.length)
+					buffer = new byte[chunkSize];
+				count = 0;
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			flush();
+			put(END);
+		}
+
+		private void put(byte[] chunk) throws IOException {
+			try {
+				if (closed || !chunks.offer(chunk, writeTimeout, TimeUnit.MILLISECONDS))
+					throw new IOException("Response body is not consumed");
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while writing response body", e);
+			}
+		}
+	}
+
+}
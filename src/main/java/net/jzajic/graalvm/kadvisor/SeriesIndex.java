@@ -0,0 +1,161 @@
+package net.jzajic.graalvm.kadvisor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Interns label sets and maps each distinct one to a dense integer series id,
+ * so {@link SeriesVector}s over the same index can be combined position by
+ * position.
+ * <p>
+ * Not thread safe, one index is used by a single collection.
+ */
+class SeriesIndex {
+
+	private final Map<LabelSet, Integer> ids = new HashMap<>();
+	private final List<LabelSet> labelSets = new ArrayList<>();
+
+	/**
+	 * @return Id of the label set, a new one is assigned on first use.
+	 */
+	int id(List<String> labelNames, List<String> labelValues) {
+		return id(new LabelSet(labelNames, labelValues));
+	}
+
+	int id(LabelSet labels) {
+		Integer id = ids.get(labels);
+		if (id == null) {
+			id = labelSets.size();
+			ids.put(labels, id);
+			labelSets.add(labels);
+		}
+		return id;
+	}
+
+	LabelSet labels(int id) {
+		return labelSets.get(id);
+	}
+
+	int size() {
+		return labelSets.size();
+	}
+
+	/**
+	 * Immutable set of label pairs, sorted by label name, so equality does not
+	 * depend on the order the exporter wrote them in.
+	 */
+	static final class LabelSet {
+		final String[] names;
+		final String[] values;
+		private final int hash;
+
+		LabelSet(List<String> labelNames, List<String> labelValues) {
+			int size = labelNames.size();
+			Integer[] order = new Integer[size];
+			for (int i = 0; i < size; i++)
+				order[i] = i;
+			Arrays.sort(order, (a, b) -> labelNames.get(a).compareTo(labelNames.get(b)));
+			this.names = new String[size];
+			this.values = new String[size];
+			for (int i = 0; i < size; i++) {
+				names[i] = labelNames.get(order[i]);
+				values[i] = labelValues.get(order[i]);
+			}
+			this.hash = 31 * Arrays.hashCode(names) + Arrays.hashCode(values);
+		}
+
+		private LabelSet(String[] names, String[] values) {
+			this.names = names;
+			this.values = values;
+			this.hash = 31 * Arrays.hashCode(names) + Arrays.hashCode(values);
+		}
+
+		/**
+		 * @return Label set with only the labels whose names are in
+		 *         <code>keep</code>, in the same order.
+		 */
+		LabelSet retain(String[] keep) {
+			return select(keep, true);
+		}
+
+		/**
+		 * @return Label set without the labels whose names are in
+		 *         <code>drop</code>.
+		 */
+		LabelSet remove(String[] drop) {
+			return select(drop, false);
+		}
+
+		/**
+		 * @return Value of the label, empty string if the label is not present.
+		 */
+		String get(String name) {
+			for (int i = 0; i < names.length; i++) {
+				if (names[i].equals(name))
+					return values[i];
+			}
+			return "";
+		}
+
+		private LabelSet select(String[] selected, boolean keep) {
+			int count = 0;
+			String[] keptNames = new String[names.length];
+			String[] keptValues = new String[names.length];
+			for (int i = 0; i < names.length; i++) {
+				boolean found = false;
+				for (String name : selected) {
+					if (name.equals(names[i])) {
+						found = true;
+						break;
+					}
+				}
+				if (found == keep) {
+					keptNames[count] = names[i];
+					keptValues[count] = values[i];
+					count++;
+				}
+			}
+			if (count == names.length)
+				return this;
+			return new LabelSet(Arrays.copyOf(keptNames, count), Arrays.copyOf(keptValues, count));
+		}
+
+		List<String> names() {
+			return Arrays.asList(names);
+		}
+
+		List<String> values() {
+			return Arrays.asList(values);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj)
+				return true;
+			if (!(obj instanceof LabelSet))
+				return false;
+			LabelSet other = (LabelSet) obj;
+			return hash == other.hash && Arrays.equals(names, other.names) && Arrays.equals(values, other.values);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder sb = new StringBuilder("{");
+			for (int i = 0; i < names.length; i++) {
+				if (i > 0)
+					sb.append(',');
+				sb.append(names[i]).append("=\"").append(values[i]).append('"');
+			}
+			return sb.append('}').toString();
+		}
+	}
+
+}
@@ -0,0 +1,332 @@
+package net.jzajic.graalvm.kadvisor;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.StringJoiner;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+
+import io.prometheus.client.Collector.MetricFamilySamples;
+import io.prometheus.client.Collector.MetricFamilySamples.Sample;
+import net.jzajic.graalvm.kadvisor.PrometheusTextTokenizer.Line;
+import net.jzajic.graalvm.kadvisor.WatchedContainerRegistry.Endpoint;
+
+/**
+ * Series selection of a metrics request, evaluated by kadvisor itself.
+ * <p>
+ * Supported query parameters, all of them may be repeated:
+ * <ul>
+ * <li><code>name[]=family</code> - exported metric family names</li>
+ * <li><code>match[]=selector</code> - Prometheus series selectors like
+ * <code>container_memory_rss{name=~"web.*"}</code>, a series has to match
+ * at least one of them. <code>__name__</code> is matched against the family
+ * name.</li>
+ * <li><code>container=name</code> - names of the containers to scrape</li>
+ * </ul>
+ * All other parameters are forwarded to the exporters unchanged.
+ */
+public class SeriesQuery {
+
+	public static final SeriesQuery ALL = new SeriesQuery(null, Collections.emptySet(), Collections.emptyList(), Collections.emptySet());
+
+	/**
+	 * Query string for the exporters, <code>null</code> if there is none.
+	 */
+	public final String exporterQuery;
+	private final Set<String> names;
+	private final List<Selector> selectors;
+	private final Set<String> containers;
+
+	private SeriesQuery(String exporterQuery, Set<String> names, List<Selector> selectors, Set<String> containers) {
+		this.exporterQuery = exporterQuery;
+		this.names = names;
+		this.selectors = selectors;
+		this.containers = containers;
+	}
+
+	/**
+	 * @param rawQuery
+	 *          Raw query string of the request, may be <code>null</code>.
+	 */
+	public static SeriesQuery parse(String rawQuery) {
+		if (rawQuery == null || rawQuery.isEmpty())
+			return ALL;
+		Set<String> names = new HashSet<>();
+		List<Selector> selectors = new ArrayList<>();
+		Set<String> containers = new HashSet<>();
+		StringJoiner exporterQuery = new StringJoiner("&");
+		for (String parameter : rawQuery.split("&")) {
+			if (parameter.isEmpty())
+				continue;
+			int eq = parameter.indexOf('=');
+			String key = decode(eq < 0 ? parameter : parameter.substring(0, eq));
+			String value = eq < 0 ? "" : decode(parameter.substring(eq + 1));
+			switch (key) {
+			case "name[]":
+				names.add(value);
+				break;
+			case "match[]":
+				selectors.add(Selector.parse(value));
+				break;
+			case "container":
+				containers.add(value);
+				break;
+			default:
+				exporterQuery.add(parameter);
+			}
+		}
+		return new SeriesQuery(exporterQuery.length() > 0 ? exporterQuery.toString() : null, names, selectors, containers);
+	}
+
+	/**
+	 * @return Whether the query selects a subset of the series.
+	 */
+	public boolean isFiltering() {
+		return !names.isEmpty() || !selectors.isEmpty() || !containers.isEmpty();
+	}
+
+	public List<Endpoint> endpoints(List<Endpoint> endpoints) {
+		if (containers.isEmpty())
+			return endpoints;
+		List<Endpoint> selected = new ArrayList<>();
+		for (Endpoint endpoint : endpoints) {
+			if (containers.contains(endpoint.tags.get("name")))
+				selected.add(endpoint);
+		}
+		return selected;
+	}
+
+	/**
+	 * @return Whether any series of the family can be selected.
+	 */
+	public boolean acceptsFamily(String name) {
+		if (!names.isEmpty() && !names.contains(name))
+			return false;
+		if (selectors.isEmpty())
+			return true;
+		for (Selector selector : selectors) {
+			if (selector.acceptsFamily(name))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @return Family filter for the tokenizer, <code>null</code> if all
+	 *         families are accepted.
+	 */
+	public Predicate<Line> familyFilter() {
+		if (names.isEmpty() && selectors.isEmpty())
+			return null;
+		return line -> acceptsFamily(line.name());
+	}
+
+	/**
+	 * @return Whether the query selects single series by their labels.
+	 */
+	public boolean hasSelectors() {
+		return !selectors.isEmpty();
+	}
+
+	/**
+	 * @return Whether a sample line of an accepted family scraped from the
+	 *         endpoint is selected.
+	 */
+	public boolean acceptsSample(String family, Line line, Endpoint endpoint) {
+		LabelLookup labels = name -> {
+			for (int i = 0; i < line.labelCount(); i++) {
+				if (line.labelName(i).equals(name))
+					return line.labelValue(i);
+			}
+			String tag = endpoint.tags.get(name);
+			return tag != null ? tag : "";
+		};
+		for (Selector selector : selectors) {
+			if (selector.matches(family, labels))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @return The selected families and series, families without any selected
+	 *         series are left out.
+	 */
+	public List<MetricFamilySamples> filter(Collection<MetricFamilySamples> families) {
+		List<MetricFamilySamples> selected = new ArrayList<>(families.size());
+		for (MetricFamilySamples family : families) {
+			if (!acceptsFamily(family.name))
+				continue;
+			List<Sample> samples = new ArrayList<>(family.samples.size());
+			for (Sample sample : family.samples) {
+				if (acceptsSample(family.name, sample))
+					samples.add(sample);
+			}
+			if (samples.size() == family.samples.size()) {
+				selected.add(family);
+			} else if (!samples.isEmpty()) {
+				selected.add(new MetricFamilySamples(family.name, family.type, family.help, samples));
+			}
+		}
+		return selected;
+	}
+
+	private boolean acceptsSample(String family, Sample sample) {
+		LabelLookup labels = name -> {
+			int i = sample.labelNames.indexOf(name);
+			return i >= 0 ? sample.labelValues.get(i) : "";
+		};
+		if (!containers.isEmpty() && !containers.contains(labels.get("name")))
+			return false;
+		if (selectors.isEmpty())
+			return true;
+		for (Selector selector : selectors) {
+			if (selector.matches(family, labels))
+				return true;
+		}
+		return false;
+	}
+
+	private static String decode(String value) {
+		try {
+			return URLDecoder.decode(value, StandardCharsets.UTF_8.name());
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	@FunctionalInterface
+	private static interface LabelLookup {
+		/**
+		 * @return Value of the label, empty string if it is not present.
+		 */
+		String get(String name);
+	}
+
+	/**
+	 * Single series selector, e.g. <code>metric{label="value",other=~"re.*"}</code>.
+	 */
+	static class Selector {
+		private final List<LabelMatcher> matchers;
+
+		private Selector(List<LabelMatcher> matchers) {
+			this.matchers = matchers;
+		}
+
+		static Selector parse(String selector) {
+			List<LabelMatcher> matchers = new ArrayList<>();
+			String s = selector.trim();
+			int brace = s.indexOf('{');
+			String name = (brace < 0 ? s : s.substring(0, brace)).trim();
+			if (!name.isEmpty())
+				matchers.add(new LabelMatcher("__name__", "=", name));
+			if (brace >= 0) {
+				int pos = brace + 1;
+				while (true) {
+					pos = skipWhitespace(s, pos);
+					if (pos >= s.length())
+						throw new IllegalArgumentException("Unterminated selector '" + selector + "'");
+					if (s.charAt(pos) == '}')
+						break;
+					int nameStart = pos;
+					while (pos < s.length() && (Character.isLetterOrDigit(s.charAt(pos)) || s.charAt(pos) == '_'))
+						pos++;
+					String label = s.substring(nameStart, pos);
+					pos = skipWhitespace(s, pos);
+					int opStart = pos;
+					while (pos < s.length() && "=!~".indexOf(s.charAt(pos)) >= 0)
+						pos++;
+					String op = s.substring(opStart, pos);
+					pos = skipWhitespace(s, pos);
+					if (label.isEmpty() || pos >= s.length() || s.charAt(pos) != '"')
+						throw new IllegalArgumentException("Invalid label matcher in selector '" + selector + "'");
+					StringBuilder value = new StringBuilder();
+					pos++;
+					while (pos < s.length() && s.charAt(pos) != '"') {
+						char c = s.charAt(pos++);
+						if (c == '\\' && pos < s.length()) {
+							c = s.charAt(pos++);
+							if (c == 'n')
+								c = '\n';
+						}
+						value.append(c);
+					}
+					if (pos >= s.length())
+						throw new IllegalArgumentException("Unterminated label value in selector '" + selector + "'");
+					matchers.add(new LabelMatcher(label, op, value.toString()));
+					pos = skipWhitespace(s, pos + 1);
+					if (pos < s.length() && s.charAt(pos) == ',')
+						pos++;
+				}
+			}
+			return new Selector(matchers);
+		}
+
+		private boolean acceptsFamily(String family) {
+			for (LabelMatcher matcher : matchers) {
+				if (matcher.name.equals("__name__") && !matcher.matches(family))
+					return false;
+			}
+			return true;
+		}
+
+		private boolean matches(String family, LabelLookup labels) {
+			for (LabelMatcher matcher : matchers) {
+				if (!matcher.matches(matcher.name.equals("__name__") ? family : labels.get(matcher.name)))
+					return false;
+			}
+			return true;
+		}
+
+		private static int skipWhitespace(String s, int pos) {
+			while (pos < s.length() && Character.isWhitespace(s.charAt(pos)))
+				pos++;
+			return pos;
+		}
+	}
+
+	private static class LabelMatcher {
+		private final String name;
+		private final boolean negate;
+		private final String value;
+		private final Pattern pattern;
+
+		private LabelMatcher(String name, String op, String value) {
+			this.name = name;
+			this.value = value;
+			switch (op) {
+			case "=":
+				this.negate = false;
+				this.pattern = null;
+				break;
+			case "!=":
+				this.negate = true;
+				this.pattern = null;
+				break;
+			case "=~":
+				this.negate = false;
+				this.pattern = Pattern.compile(value);
+				break;
+			case "!~":
+				this.negate = true;
+				this.pattern = Pattern.compile(value);
+				break;
+			default:
+				throw new IllegalArgumentException("Unknown label matcher operator '" + op + "'");
+			}
+		}
+
+		private boolean matches(String actual) {
+			boolean matches = pattern != null ? pattern.matcher(actual).matches() : value.equals(actual);
+			return matches != negate;
+		}
+	}
+
+}
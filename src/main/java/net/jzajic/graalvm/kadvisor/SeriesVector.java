@@ -0,0 +1,243 @@
+package net.jzajic.graalvm.kadvisor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Predicate;
+import java.util.function.UnaryOperator;
+
+import io.prometheus.client.Collector.MetricFamilySamples;
+import io.prometheus.client.Collector.MetricFamilySamples.Sample;
+import io.prometheus.client.Collector.Type;
+
+/**
+ * Values of one metric, indexed by the series ids of a {@link SeriesIndex}.
+ * <p>
+ * Values are kept in a primitive column with a presence bitmap, so combining
+ * two vectors is a single pass over the ids without any boxing or per series
+ * allocation.
+ */
+class SeriesVector {
+
+	final String name;
+	private final SeriesIndex index;
+	private double[] values;
+	private long[] present;
+
+	private SeriesVector(String name, SeriesIndex index, double[] values, long[] present) {
+		this.name = name;
+		this.index = index;
+		this.values = values;
+		this.present = present;
+	}
+
+	private SeriesVector(String name, SeriesIndex index, int capacity) {
+		this(name, index, new double[capacity], new long[(capacity + 63) >>> 6]);
+	}
+
+	/**
+	 * Groups the samples of the family by their label sets, samples with the
+	 * same labels are summed.
+	 */
+	static SeriesVector of(MetricFamilySamples family, SeriesIndex index) {
+		int[] ids = new int[family.samples.size()];
+		int i = 0;
+		for (Sample sample : family.samples) {
+			ids[i++] = index.id(sample.labelNames, sample.labelValues);
+		}
+		SeriesVector vector = new SeriesVector(family.name, index, index.size());
+		i = 0;
+		for (Sample sample : family.samples) {
+			vector.add(ids[i++], sample.value);
+		}
+		return vector;
+	}
+
+	/**
+	 * @return Vector without any series, to be filled by
+	 *         {@link #set(int, double)}.
+	 */
+	static SeriesVector empty(String name, SeriesIndex index) {
+		return new SeriesVector(name, index, index.size());
+	}
+
+	SeriesIndex index() {
+		return index;
+	}
+
+	boolean isPresent(int id) {
+		int word = id >>> 6;
+		return word < present.length && (present[word] & (1L << id)) != 0 && id < values.length;
+	}
+
+	double get(int id) {
+		return isPresent(id) ? values[id] : Double.NaN;
+	}
+
+	/**
+	 * @return Number of series with a value.
+	 */
+	int size() {
+		int size = 0;
+		for (long word : present)
+			size += Long.bitCount(word);
+		return size;
+	}
+
+	void set(int id, double value) {
+		ensureCapacity(id);
+		values[id] = value;
+		present[id >>> 6] |= 1L << id;
+	}
+
+	private void add(int id, double value) {
+		ensureCapacity(id);
+		if (isPresent(id)) {
+			values[id] += value;
+		} else {
+			values[id] = value;
+			present[id >>> 6] |= 1L << id;
+		}
+	}
+
+	private void ensureCapacity(int id) {
+		if (id >= values.length) {
+			values = Arrays.copyOf(values, Math.max(id + 1, index.size()));
+			present = Arrays.copyOf(present, (values.length + 63) >>> 6);
+		}
+	}
+
+	/**
+	 * Calls the consumer for every series with a value, in id order.
+	 */
+	void forEach(SeriesConsumer consumer) {
+		for (int w = 0; w < present.length; w++) {
+			long bits = present[w];
+			while (bits != 0) {
+				int id = (w << 6) + Long.numberOfTrailingZeros(bits);
+				bits &= bits - 1;
+				consumer.accept(id, values[id]);
+			}
+		}
+	}
+
+	@FunctionalInterface
+	static interface SeriesConsumer {
+		void accept(int id, double value);
+	}
+
+	SeriesVector rename(String newName) {
+		return new SeriesVector(newName, index, values, present);
+	}
+
+	/**
+	 * @return Difference of the series present in this vector, series missing
+	 *         in <code>other</code> are kept unchanged.
+	 */
+	SeriesVector minus(SeriesVector other, String newName) {
+		return combine(other, newName, -1);
+	}
+
+	/**
+	 * @return Sum of the series present in this vector, series missing in
+	 *         <code>other</code> are kept unchanged.
+	 */
+	SeriesVector plus(SeriesVector other, String newName) {
+		return combine(other, newName, 1);
+	}
+
+	private SeriesVector combine(SeriesVector other, String newName, double sign) {
+		double[] result = Arrays.copyOf(values, values.length);
+		int common = Math.min(values.length, other.values.length);
+		int words = Math.min(present.length, other.present.length);
+		for (int w = 0; w < words; w++) {
+			long both = present[w] & other.present[w];
+			while (both != 0) {
+				int id = (w << 6) + Long.numberOfTrailingZeros(both);
+				both &= both - 1;
+				if (id < common)
+					result[id] += sign * other.values[id];
+			}
+		}
+		return new SeriesVector(newName, index, result, present.clone());
+	}
+
+	/**
+	 * @return Quotient of the series present in both vectors, series with a zero
+	 *         divisor are left out.
+	 */
+	SeriesVector divide(SeriesVector divisor, String newName) {
+		SeriesVector result = new SeriesVector(newName, index, values.length);
+		forEach((id, value) -> {
+			if (divisor.isPresent(id) && divisor.values[id] != 0)
+				result.set(id, value / divisor.values[id]);
+		});
+		return result;
+	}
+
+	/**
+	 * @return Series whose <code>label</code> value passes the test, a missing
+	 *         label is tested as an empty string.
+	 */
+	SeriesVector filter(String label, Predicate<String> test) {
+		SeriesVector result = new SeriesVector(name, index, values.length);
+		forEach((id, value) -> {
+			if (test.test(index.labels(id).get(label)))
+				result.set(id, value);
+		});
+		return result;
+	}
+
+	/**
+	 * Sums the series which have the same values of the <code>by</code> labels,
+	 * all other labels are dropped.
+	 */
+	SeriesVector sumBy(String newName, String... by) {
+		return aggregate(newName, labels -> labels.retain(by));
+	}
+
+	/**
+	 * Sums the series which differ only in the <code>without</code> labels,
+	 * these labels are dropped.
+	 */
+	SeriesVector sumWithout(String newName, String... without) {
+		return aggregate(newName, labels -> labels.remove(without));
+	}
+
+	private SeriesVector aggregate(String newName, UnaryOperator<SeriesIndex.LabelSet> grouping) {
+		int[] targets = new int[values.length];
+		for (int w = 0; w < present.length; w++) {
+			long bits = present[w];
+			while (bits != 0) {
+				int id = (w << 6) + Long.numberOfTrailingZeros(bits);
+				bits &= bits - 1;
+				targets[id] = index.id(grouping.apply(index.labels(id)));
+			}
+		}
+		SeriesVector result = new SeriesVector(newName, index, index.size());
+		for (int w = 0; w < present.length; w++) {
+			long bits = present[w];
+			while (bits != 0) {
+				int id = (w << 6) + Long.numberOfTrailingZeros(bits);
+				bits &= bits - 1;
+				result.add(targets[id], values[id]);
+			}
+		}
+		return result;
+	}
+
+	MetricFamilySamples toFamily(Type type, String help) {
+		List<Sample> samples = new ArrayList<>(size());
+		for (int w = 0; w < present.length; w++) {
+			long bits = present[w];
+			while (bits != 0) {
+				int id = (w << 6) + Long.numberOfTrailingZeros(bits);
+				bits &= bits - 1;
+				SeriesIndex.LabelSet labels = index.labels(id);
+				samples.add(new Sample(name, labels.names(), labels.values(), values[id]));
+			}
+		}
+		return new MetricFamilySamples(name, type, help, samples);
+	}
+
+}
@@ -1,18 +1,27 @@
 package net.jzajic.graalvm.kadvisor;
 
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.stream.Collectors;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 import net.jzajic.graalvm.client.DockerClient;
 import net.jzajic.graalvm.client.DockerClient.EventsParam;
@@ -24,26 +33,97 @@ import net.jzajic.graalvm.client.messages.ContainerInfo;
 import net.jzajic.graalvm.client.messages.Event.Type;
 import net.jzajic.graalvm.client.messages.NetworkSettings;
 
+/**
+ * Containers carrying the kadvisor label, kept up to date by Docker events.
+ * <p>
+ * The event thread only records the latest action per container. Events of
+ * one container arriving within the coalescing window are handled once, the
+ * inspections of different containers run in parallel on a bounded pool. As
+ * they complete in any order, an address is only removed by the container
+ * currently holding it.
+ * Listeners are notified on their own thread each, in the order of the
+ * changes, so a slow listener neither delays the others nor the inspections.
+ */
 public class WatchedContainerRegistry {
 
 	private final Map<String,ContainerInfo> containerMap = new ConcurrentHashMap<>();
-	private final Set<ContainerListener> listeners;
+	private final Map<String,Endpoint> endpointMap = new ConcurrentHashMap<>();
+	/**
+	 * Address of every watched container by its id.
+	 */
+	private final Map<String,String> containerAddresses = new ConcurrentHashMap<>();
+	private volatile List<Endpoint> endpoints = Collections.emptyList();
+	private final Map<ContainerListener, ExecutorService> listeners;
+	
+	/**
+	 * Pseudo action of a container which died and became healthy again within
+	 * one coalescing window.
+	 */
+	private static final String RESTART = "restart";
+	
+	/**
+	 * Latest not yet handled action per container id.
+	 */
+	private final Map<String,String> pendingActions = new ConcurrentHashMap<>();
+	/**
+	 * Time of the oldest not yet handled event per container id, in
+	 * nanoseconds since the epoch.
+	 */
+	private final Map<String,Long> pendingSince = new ConcurrentHashMap<>();
+	/**
+	 * Container ids with a scheduled or running handling task, there is at most
+	 * one per container.
+	 */
+	private final Set<String> scheduledContainers = ConcurrentHashMap.newKeySet();
+	private final ScheduledExecutorService inspector;
+	private final long coalesceWindow;
 	
 	private final String runtime;
 	private final DockerClient dockerClient;
 	private final String networkName;
+	private final KadvisorMetrics metrics;
 	
 	private volatile boolean running = true;
 	
-	public WatchedContainerRegistry(DockerClient dockerClient, String label, String runtime, String networkName) {
+	/**
+	 * @param metrics
+	 *          Records the delay of the Docker events until their handling
+	 *          starts.
+	 * @param inspectThreads
+	 *          Number of containers inspected in parallel.
+	 * @param coalesceWindow
+	 *          Milliseconds events of one container are collected before they
+	 *          are handled together.
+	 */
+	public WatchedContainerRegistry(DockerClient dockerClient, String label, String runtime, String networkName, KadvisorMetrics metrics,
+			int inspectThreads, long coalesceWindow) {
 		this.runtime = runtime;
 		this.dockerClient = dockerClient;
 		this.networkName = networkName;		
-		listeners = Collections.synchronizedSet(Sets.newIdentityHashSet());
+		this.metrics = metrics;
+		this.coalesceWindow = coalesceWindow;
+		this.listeners = new IdentityHashMap<>();
+		this.inspector = Executors.newScheduledThreadPool(inspectThreads, new ThreadFactoryBuilder()
+				.setNameFormat("kadvisor-inspector-%d")
+					.setDaemon(true)
+					.build());
 		List<Container> containers = dockerClient.listContainers(ListContainersParam.withLabel(label));
-		containers.forEach(cont -> {
+		List<Callable<Void>> inspections = new ArrayList<>();
+		containers.forEach(cont -> inspections.add(() -> {
 			inspectContainer(cont.id);
-		});
+			return null;
+		}));
+		try {
+			for (Future<Void> inspection : inspector.invokeAll(inspections)) {
+				try {
+					inspection.get();
+				} catch (ExecutionException e) {
+					e.getCause().printStackTrace();
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
 		EventStream events = dockerClient.events(EventsParam.label(label), EventsParam.event("health_status"), EventsParam.event("die"));
 		Thread eventThread = new Thread("Docker event consuming Thread") {
 			@Override
@@ -53,10 +133,8 @@ public class WatchedContainerRegistry {
 						if(action.type == Type.CONTAINER) {
 							switch(action.action) {
 								case "health_status":
-									inspectContainer(action.actor.id);
-									break;
 								case "die":
-									removeContainer(action.actor.id);
+									schedule(action.actor.id, action.action, action.timeNano);
 									break;
 							}
 						}
@@ -68,6 +146,47 @@ public class WatchedContainerRegistry {
 		eventThread.start();
 	}
 	
+	/**
+	 * Records the action as the latest one of the container and schedules its
+	 * handling, unless it is already scheduled.
+	 */
+	private void schedule(String containerId, String action, Long timeNano) {
+		if (timeNano != null)
+			pendingSince.putIfAbsent(containerId, timeNano);
+		// a coalesced die must not get lost, the restarted container needs a new agent
+		pendingActions.merge(containerId, action, (previous, next) ->
+				"health_status".equals(next) && ("die".equals(previous) || RESTART.equals(previous)) ? RESTART : next);
+		if (scheduledContainers.add(containerId))
+			inspector.schedule(() -> handlePending(containerId), coalesceWindow, TimeUnit.MILLISECONDS);
+	}
+	
+	private void handlePending(String containerId) {
+		try {
+			Long since = pendingSince.remove(containerId);
+			String action = pendingActions.remove(containerId);
+			if (since != null) {
+				// includes the coalescing window and the wait for an inspector
+				long lag = TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis()) - since;
+				metrics.dockerEventLag.observeNanos(Math.max(lag, 0));
+			}
+			if ("health_status".equals(action)) {
+				inspectContainer(containerId);
+			} else if ("die".equals(action)) {
+				removeContainer(containerId);
+			} else if (RESTART.equals(action)) {
+				removeContainer(containerId);
+				inspectContainer(containerId);
+			}
+		} catch (RuntimeException e) {
+			System.err.println("Handling of container "+containerId+" failed: "+e);
+		} finally {
+			scheduledContainers.remove(containerId);
+			// an event arrived while this one was handled
+			if (pendingActions.containsKey(containerId) && scheduledContainers.add(containerId))
+				inspector.schedule(() -> handlePending(containerId), coalesceWindow, TimeUnit.MILLISECONDS);
+		}
+	}
+	
 	private void inspectContainer(String containerId) {
 		ContainerInfo containerInfo = dockerClient.inspectContainer(containerId);
 		if(this.runtime == null || containerInfo.hostConfig.runtime.equals(this.runtime)) {
@@ -78,54 +197,92 @@ public class WatchedContainerRegistry {
 			} else {
 				network = networkSettings.networks.values().iterator().next();
 			}
-			ContainerInfo prevValue = containerMap.put(network.ipAddress, containerInfo);
-			if(prevValue == null || !prevValue.state.running)
-				notifyAdd(network.ipAddress, containerInfo);
+			addContainer(network.ipAddress, containerInfo, new Endpoint(network.ipAddress, 9100, "/metrics", buildTags(containerInfo)));
 		}
 	}
-
-	private void removeContainer(String containerId) {
-		ContainerInfo containerInfo = dockerClient.inspectContainer(containerId);
-		if(this.runtime == null || containerInfo.hostConfig.runtime.equals(this.runtime)) {
-			NetworkSettings networkSettings = containerInfo.networkSettings;
-			networkSettings.networks.forEach((key, net) -> {
-				ContainerInfo removed = containerMap.remove(net.ipAddress);
-				if(removed != null) {
-					notifyRemove(net.ipAddress, removed);
-				}
-			});						
+	
+	/**
+	 * Only the map updates are serialized, the inspections run in parallel.
+	 */
+	private synchronized void addContainer(String ipAddress, ContainerInfo containerInfo, Endpoint endpoint) {
+		// restarted with another address
+		String previousAddress = containerAddresses.put(containerInfo.id, ipAddress);
+		if(previousAddress != null && !previousAddress.equals(ipAddress))
+			removeAddress(previousAddress, containerInfo.id);
+		ContainerInfo prevValue = containerMap.put(ipAddress, containerInfo);
+		endpointMap.put(ipAddress, endpoint);
+		publishEndpoints();
+		if(prevValue != null && !prevValue.id.equals(containerInfo.id)) {
+			// address taken over from a container whose removal is still pending
+			containerAddresses.remove(prevValue.id, ipAddress);
+			notifyRemove(ipAddress, prevValue);
+			prevValue = null;
 		}
+		if(prevValue == null || !prevValue.state.running)
+			notifyAdd(ipAddress, containerInfo);
+	}
+
+	/**
+	 * Removes the container by its known address, a dead container may be
+	 * gone before it could be inspected.
+	 */
+	private synchronized void removeContainer(String containerId) {
+		String ipAddress = containerAddresses.remove(containerId);
+		if(ipAddress != null)
+			removeAddress(ipAddress, containerId);
+	}
+	
+	/**
+	 * Removes the address unless it was taken over by another container
+	 * meanwhile.
+	 */
+	private synchronized void removeAddress(String ipAddress, String containerId) {
+		ContainerInfo current = containerMap.get(ipAddress);
+		if(current == null || !current.id.equals(containerId))
+			return;
+		containerMap.remove(ipAddress);
+		endpointMap.remove(ipAddress);
+		publishEndpoints();
+		notifyRemove(ipAddress, current);
 	}
 	
 	private void notifyAdd(String ipAddress, ContainerInfo containerInfo) {
 		synchronized (this.listeners) {
-			Iterator<ContainerListener> i = listeners.iterator(); // Must be in the synchronized block
-      while (i.hasNext())
-          i.next().added(ipAddress, containerInfo);
+			this.listeners.forEach((listener, executor) -> executor.execute(() -> listener.added(ipAddress, containerInfo)));
 		}
 	}
 	
 	private void notifyRemove(String ipAddress, ContainerInfo removed) {
 		synchronized (this.listeners) {
-			Iterator<ContainerListener> i = listeners.iterator(); // Must be in the synchronized block
-      while (i.hasNext())
-          i.next().removed(ipAddress, removed);
+			this.listeners.forEach((listener, executor) -> executor.execute(() -> listener.removed(ipAddress, removed)));
 		}
 	}
 
 	public void stop() {
 		running = false;
+		inspector.shutdownNow();
+		synchronized (this.listeners) {
+			this.listeners.values().forEach(ExecutorService::shutdownNow);
+		}
 	}
 	
+	/**
+	 * Adds the listener and notifies it of the running containers. All
+	 * notifications of the listener are delivered in order on its own thread.
+	 */
 	public void addListener(ContainerListener listener) {
 		synchronized (this.listeners) {
+			ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+					.setNameFormat("kadvisor-listener-" + listener.getClass().getSimpleName())
+						.setDaemon(true)
+						.build());
 			HashSet<Entry<String, ContainerInfo>> existingContainers = Sets.newHashSet(this.containerMap.entrySet());		
 			for (Entry<String, ContainerInfo> entry : existingContainers) {
 				ContainerInfo info = entry.getValue();
 				if(info.state.running)
-					listener.added(entry.getKey(), info);
+					executor.execute(() -> listener.added(entry.getKey(), info));
 			}
-			this.listeners.add(listener);
+			this.listeners.put(listener, executor);
 		}
 	}
 	
@@ -136,19 +293,19 @@ public class WatchedContainerRegistry {
 		
 	}
 	
+	/**
+	 * @return Immutable snapshot of the endpoints of all watched containers,
+	 *         replaced as a whole whenever a container is added or removed.
+	 */
 	public List<Endpoint> endpoints() {
-		return this.containerMap.entrySet().stream().map(entry -> {
-			Endpoint e = new Endpoint();
-			e.ipAddress = entry.getKey();
-			ContainerInfo value = entry.getValue();
-			e.port = 9100;
-			e.path = "/metrics";
-			e.tags = buildTags(value);
-			return e;
-		}).collect(Collectors.toList());
-	}
-	
-	private Map<String, String> buildTags(ContainerInfo value) {
+		return this.endpoints;
+	}
+	
+	private synchronized void publishEndpoints() {
+		this.endpoints = Collections.unmodifiableList(new ArrayList<>(endpointMap.values()));
+	}
+	
+	static Map<String, String> buildTags(ContainerInfo value) {
 		Map<String, String> tags = new HashMap<>();
 		ImmutableMap<String, String> labels = value.config.labels;
 		if(labels != null && !labels.isEmpty()) {
@@ -162,11 +319,33 @@ public class WatchedContainerRegistry {
 		return tags;
 	}
 
-	public static class Endpoint {
-		String ipAddress;
-		int port;
-		String path;
-		Map<String,String> tags;
+	/**
+	 * Scrape target of a container together with its tags, computed once when
+	 * the container is inspected.
+	 */
+	public static final class Endpoint {
+		final String ipAddress;
+		final int port;
+		final String path;
+		final Map<String,String> tags;
+		final List<String> tagNames;
+		final List<String> tagValues;
+		/**
+		 * Tags rendered as they appear between the braces of a sample.
+		 */
+		final String labelFragment;
+		final byte[] labelFragmentBytes;
+		
+		Endpoint(String ipAddress, int port, String path, Map<String,String> tags) {
+			this.ipAddress = ipAddress;
+			this.port = port;
+			this.path = path;
+			this.tags = Collections.unmodifiableMap(tags);
+			this.tagNames = Collections.unmodifiableList(new ArrayList<>(tags.keySet()));
+			this.tagValues = Collections.unmodifiableList(new ArrayList<>(tags.values()));
+			this.labelFragment = PrometheusTextFormatParser.labelFragment(tags);
+			this.labelFragmentBytes = labelFragment.getBytes(StandardCharsets.UTF_8);
+		}
 	}
 	
 }
@@ -0,0 +1,79 @@
+package net.jzajic.graalvm.kadvisor;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.io.MoreFiles;
+import com.google.common.io.RecursiveDeleteOption;
+
+public class AgentArchiveTest {
+
+	@Test
+	public void testUstarEntries() throws IOException {
+		Path binary = Files.createTempFile("node_exporter", "");
+		try {
+			byte[] content = new byte[1300];
+			content[0] = 42;
+			Files.write(binary, content);
+			AgentArchive archive = new AgentArchive(binary, "script");
+			byte[] tar;
+			try (InputStream stream = archive.stream()) {
+				tar = ByteStreams.toByteArray(stream);
+			}
+			// binary with three content blocks, script, marker, two end blocks
+			Assert.assertEquals(10 * 512, tar.length);
+			Assert.assertEquals(binary.getFileName().toString(), field(tar, 0, 100));
+			Assert.assertEquals("0000755", field(tar, 100, 8));
+			Assert.assertEquals(1300, Long.parseLong(field(tar, 124, 12), 8));
+			Assert.assertEquals("ustar", field(tar, 257, 6));
+			long checksum = 0;
+			for (int i = 0; i < 512; i++)
+				checksum += i >= 148 && i < 156 ? ' ' : tar[i] & 0xff;
+			Assert.assertEquals(checksum, Long.parseLong(field(tar, 148, 8).trim(), 8));
+			Assert.assertEquals(42, tar[512]);
+			Assert.assertEquals("kadvisor.sh", field(tar, 4 * 512, 100));
+			Assert.assertEquals("0000755", field(tar, 4 * 512 + 100, 8));
+			Assert.assertEquals("script", field(tar, 5 * 512, 512));
+			Assert.assertEquals(".kadvisor-agent", field(tar, 6 * 512, 100));
+			Assert.assertEquals(archive.hash + "\n", field(tar, 7 * 512, 512));
+
+			Assert.assertNotEquals(archive.hash, new AgentArchive(binary, "other script").hash);
+		} finally {
+			Files.delete(binary);
+		}
+	}
+
+	@Test
+	public void testExtractToVolume() throws IOException {
+		Path binary = Files.createTempFile("node_exporter", "");
+		Path volume = Files.createTempDirectory("kadvisor");
+		try {
+			Files.write(binary, new byte[] { 42 });
+			AgentArchive archive = new AgentArchive(binary, "script");
+			Assert.assertTrue(archive.extractTo(volume));
+			Assert.assertArrayEquals(new byte[] { 42 }, Files.readAllBytes(volume.resolve(archive.binaryName)));
+			Assert.assertTrue(Files.isExecutable(volume.resolve("kadvisor.sh")));
+			Assert.assertEquals(archive.hash + "\n", new String(Files.readAllBytes(volume.resolve(".kadvisor-agent")), StandardCharsets.US_ASCII));
+			Assert.assertFalse(archive.extractTo(volume));
+			Assert.assertTrue(new AgentArchive(binary, "other script").extractTo(volume));
+		} finally {
+			MoreFiles.deleteRecursively(volume, RecursiveDeleteOption.ALLOW_INSECURE);
+			Files.delete(binary);
+		}
+	}
+
+	private static String field(byte[] header, int offset, int length) {
+		int end = offset;
+		while (end < offset + length && header[end] != 0)
+			end++;
+		return new String(header, offset, end - offset, StandardCharsets.US_ASCII);
+	}
+
+}
@@ -1,16 +1,189 @@
 package net.jzajic.graalvm.kadvisor;
 
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Matcher;
 
+import org.junit.After;
 import org.junit.Assert;
+import org.junit.Before;
 import org.junit.Test;
 
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
+import com.google.common.io.MoreFiles;
+import com.google.common.io.RecursiveDeleteOption;
+
+import net.jzajic.graalvm.client.DockerClient;
+import net.jzajic.graalvm.client.messages.ContainerConfig;
+import net.jzajic.graalvm.client.messages.ContainerInfo;
+import net.jzajic.graalvm.client.messages.ContainerMount;
+import net.jzajic.graalvm.client.messages.ExecCreation;
+import net.jzajic.graalvm.client.messages.ExecState;
 
 
 public class ContainerAgentManagerTest {
 	
+	private final BlockingQueue<String> calls = new LinkedBlockingQueue<>();
+	/**
+	 * Number of uploads still to block until they are interrupted.
+	 */
+	private final AtomicInteger blockedCopies = new AtomicInteger();
+	private Path binary;
+	
+	@Before
+	public void createBinary() throws IOException {
+		binary = Files.createTempFile("node_exporter", "");
+	}
+	
+	@After
+	public void deleteBinary() throws IOException {
+		Files.delete(binary);
+	}
+	
+	@Test
+	public void testFailedMarkerCheckUploads() throws Exception {
+		ContainerAgentManager manager = new ContainerAgentManager(dockerClient(), binary, null, null, "", 1, 1, 10, new KadvisorMetrics());
+		manager.added("10.0.0.2", containerInfo("web"));
+		Assert.assertEquals("exec web cat", calls.poll(5, TimeUnit.SECONDS));
+		Assert.assertEquals("copy web /bin", calls.poll(5, TimeUnit.SECONDS));
+		Assert.assertEquals("exec web /bin/kadvisor.sh", calls.poll(5, TimeUnit.SECONDS));
+		manager.stop();
+	}
+	
+	@Test
+	public void testRepeatedAddCancelsPendingDeployment() throws Exception {
+		ContainerAgentManager manager = new ContainerAgentManager(dockerClient(), binary, null, null, "", 2, 3, 10, new KadvisorMetrics());
+		blockedCopies.set(1);
+		manager.added("10.0.0.2", containerInfo("web"));
+		Assert.assertEquals("exec web cat", calls.poll(5, TimeUnit.SECONDS));
+		Assert.assertEquals("copy web /bin", calls.poll(5, TimeUnit.SECONDS));
+		// restarted before the first deployment finished
+		manager.added("10.0.0.2", containerInfo("web"));
+		List<String> recorded = Lists.newArrayList();
+		String call;
+		while ((call = calls.poll(500, TimeUnit.MILLISECONDS)) != null)
+			recorded.add(call);
+		Assert.assertTrue(recorded.toString(), recorded.contains("copy interrupted"));
+		// the cancelled deployment is not retried
+		Assert.assertEquals(recorded.toString(), 1, recorded.stream().filter(c -> c.equals("exec web /bin/kadvisor.sh")).count());
+		manager.stop();
+	}
+	
+	@Test
+	public void testMountLabelWithoutAgentVolumeUploads() throws Exception {
+		ContainerAgentManager manager = new ContainerAgentManager(dockerClient(), binary, null, null, "", 1, 1, 10, new KadvisorMetrics());
+		ContainerInfo labelled = containerInfo("labelled");
+		labelled.config.labels = ImmutableMap.of(ContainerAgentManager.MOUNT_LABEL, "/kadvisor");
+		labelled.mounts = ImmutableList.of(mount("/var/lib/kadvisor", "/kadvisor", "rw"));
+		manager.added("10.0.0.2", labelled);
+		assertUploaded("labelled");
+		manager.stop();
+	}
+	
+	@Test
+	public void testMountLabelNeedsAgentVolume() throws Exception {
+		Path volume = Files.createTempDirectory("kadvisor");
+		try {
+			ContainerAgentManager manager = new ContainerAgentManager(dockerClient(), binary, volume, "/var/lib/kadvisor", "", 1, 1, 10, new KadvisorMetrics());
+			ContainerInfo mounted = containerInfo("mounted");
+			mounted.config.labels = ImmutableMap.of(ContainerAgentManager.MOUNT_LABEL, "/kadvisor/");
+			mounted.mounts = ImmutableList.of(mount("/var/lib/kadvisor/", "/kadvisor", "ro"));
+			manager.added("10.0.0.2", mounted);
+			Assert.assertEquals("exec mounted /kadvisor/kadvisor.sh", calls.poll(5, TimeUnit.SECONDS));
+			
+			// nothing of the agent below an unrelated mount
+			ContainerInfo unrelated = containerInfo("unrelated");
+			unrelated.config.labels = ImmutableMap.of(ContainerAgentManager.MOUNT_LABEL, "/opt/kadvisor");
+			unrelated.mounts = ImmutableList.of(mount("/srv/data", "/opt", "rw"));
+			manager.added("10.0.0.3", unrelated);
+			assertUploaded("unrelated");
+			
+			ContainerInfo noexec = containerInfo("noexec");
+			noexec.config.labels = ImmutableMap.of(ContainerAgentManager.MOUNT_LABEL, "/kadvisor");
+			noexec.mounts = ImmutableList.of(mount("/var/lib/kadvisor", "/kadvisor", "ro,noexec"));
+			manager.added("10.0.0.4", noexec);
+			assertUploaded("noexec");
+			manager.stop();
+		} finally {
+			MoreFiles.deleteRecursively(volume, RecursiveDeleteOption.ALLOW_INSECURE);
+		}
+	}
+	
+	private void assertUploaded(String id) throws InterruptedException {
+		Assert.assertEquals("exec "+id+" cat", calls.poll(5, TimeUnit.SECONDS));
+		Assert.assertEquals("copy "+id+" /bin", calls.poll(5, TimeUnit.SECONDS));
+		Assert.assertEquals("exec "+id+" /bin/kadvisor.sh", calls.poll(5, TimeUnit.SECONDS));
+	}
+	
+	/**
+	 * Docker client recording the uploads and execs, for an image without
+	 * <code>cat</code>.
+	 */
+	private DockerClient dockerClient() {
+		return (DockerClient) Proxy.newProxyInstance(DockerClient.class.getClassLoader(), new Class<?>[] { DockerClient.class },
+				(proxy, method, args) -> {
+					switch (method.getName()) {
+					case "copyToContainer":
+						// decided before the call is seen by the test
+						boolean blocked = blockedCopies.getAndDecrement() > 0;
+						calls.add("copy " + args[1] + " " + args[2]);
+						if (blocked) {
+							try {
+								Thread.sleep(TimeUnit.MINUTES.toMillis(1));
+							} catch (InterruptedException e) {
+								calls.add("copy interrupted");
+								Thread.currentThread().interrupt();
+								throw new IllegalStateException(e);
+							}
+						}
+						return null;
+					case "execCreate":
+						String[] cmd = (String[]) args[1];
+						calls.add("exec " + args[0] + " " + cmd[0]);
+						if (cmd[0].equals("cat"))
+							throw new IllegalStateException("executable file not found in $PATH");
+						ExecCreation execCreation = new ExecCreation();
+						execCreation.id = "exec-" + args[0];
+						return execCreation;
+					case "execStart":
+						return null;
+					case "execInspect":
+						ExecState execState = new ExecState();
+						execState.containerId = ((String) args[0]).substring("exec-".length());
+						execState.Pid = "1";
+						return execState;
+					default:
+						throw new UnsupportedOperationException(method.getName());
+					}
+				});
+	}
+	
+	private static ContainerMount mount(String source, String destination, String mode) {
+		ContainerMount mount = new ContainerMount();
+		mount.type = "bind";
+		mount.source = source;
+		mount.destination = destination;
+		mount.mode = mode;
+		return mount;
+	}
+	
+	private static ContainerInfo containerInfo(String id) {
+		ContainerInfo info = new ContainerInfo();
+		info.id = id;
+		info.config = new ContainerConfig();
+		info.config.labels = ImmutableMap.of();
+		return info;
+	}
+	
 	@Test
 	public void testArgParserSimple() {
 		testArgParser("--no-collector.timex", 1);
@@ -0,0 +1,37 @@
+package net.jzajic.graalvm.kadvisor;
+
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import io.prometheus.client.Collector.MetricFamilySamples;
+import io.prometheus.client.Collector.MetricFamilySamples.Sample;
+
+public class KadvisorMetricsTest {
+
+	@Test
+	public void testHistogramBucketsAreCumulative() {
+		KadvisorMetrics metrics = new KadvisorMetrics();
+		metrics.computeDuration.observe(0.0002);
+		metrics.computeDuration.observe(0.003);
+		metrics.computeDuration.observe(0.004);
+		metrics.computeDuration.observe(60);
+		MetricFamilySamples family = metrics.collectAll().stream()
+				.filter(f -> f.name.equals("kadvisor_compute_duration_seconds"))
+					.findFirst()
+					.get();
+		List<Sample> samples = family.samples;
+		Assert.assertEquals("kadvisor_compute_duration_seconds_bucket", samples.get(0).name);
+		Assert.assertEquals(PrometheusTextFormatParser.doubleToGoString(0.0005), samples.get(0).labelValues.get(0));
+		Assert.assertEquals(1, samples.get(0).value, 0);
+		// le="0.005"
+		Assert.assertEquals(3, samples.get(3).value, 0);
+		Sample inf = samples.get(samples.size() - 3);
+		Assert.assertEquals("+Inf", inf.labelValues.get(0));
+		Assert.assertEquals(4, inf.value, 0);
+		Assert.assertEquals(4, samples.get(samples.size() - 2).value, 0);
+		Assert.assertEquals(60.0072, samples.get(samples.size() - 1).value, 1e-9);
+	}
+
+}
@@ -0,0 +1,439 @@
+package net.jzajic.graalvm.kadvisor;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.reflect.Proxy;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.GZIPOutputStream;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.sun.net.httpserver.HttpServer;
+
+import net.jzajic.graalvm.client.DockerClient;
+import net.jzajic.graalvm.client.EventStream;
+import net.jzajic.graalvm.client.messages.AttachedNetwork;
+import net.jzajic.graalvm.client.messages.Container;
+import net.jzajic.graalvm.client.messages.ContainerConfig;
+import net.jzajic.graalvm.client.messages.ContainerInfo;
+import net.jzajic.graalvm.client.messages.ContainerState;
+import net.jzajic.graalvm.client.messages.Event;
+import net.jzajic.graalvm.client.messages.NetworkSettings;
+import rawhttp.core.RawHttp;
+
+/**
+ * Load test of kadvisor with simulated containers, to size hosts.
+ * <p>
+ * Every container is an in-process fake node exporter listening on its own
+ * loopback address (127.0.x.y:9100) and announced to the
+ * {@link WatchedContainerRegistry} by a stub {@link DockerClient}. Concurrent
+ * clients request /metrics from the {@link BoundedHttpServer} for the
+ * configured duration and the harness reports throughput, latency
+ * percentiles, the allocation rate of the kadvisor threads and the peak heap.
+ * <p>
+ * Configured by system properties, e.g.
+ * <code>-Dcontainers=200 -Dseries=2000 -Dclients=8 -Dinterval=5000</code>:
+ * <ul>
+ * <li><code>containers</code> - number of simulated containers (100)</li>
+ * <li><code>series</code> - series per exporter response (1000)</li>
+ * <li><code>latency</code> - exporter response delay in ms, up to half of it
+ * is added as jitter (5)</li>
+ * <li><code>failureRate</code> - share of exporter responses failing with 500
+ * (0)</li>
+ * <li><code>clients</code> - concurrent /metrics clients (4)</li>
+ * <li><code>warmup</code>, <code>duration</code> - seconds of warmup and
+ * measurement (10, 30)</li>
+ * <li><code>interval</code> - collecting interval in ms, 0 scrapes on every
+ * request (0)</li>
+ * <li><code>passthrough</code> - stream the raw exporter metrics (false)</li>
+ * <li><code>churn</code> - ms between restarts of a random container, 0
+ * disables (0)</li>
+ * <li><code>port</code> - port of the kadvisor server (18234)</li>
+ * </ul>
+ * Linux routes the whole 127.0.0.0/8 to the loopback interface, other systems
+ * may need the addresses to be configured first.
+ */
+public class LoadIt {
+
+	private static final String LABEL = "kadvisor";
+
+	private final int containers = Integer.getInteger("containers", 100);
+	private final int series = Integer.getInteger("series", 1000);
+	private final int latency = Integer.getInteger("latency", 5);
+	private final double failureRate = Double.parseDouble(System.getProperty("failureRate", "0"));
+	private final int clients = Integer.getInteger("clients", 4);
+	private final int warmup = Integer.getInteger("warmup", 10);
+	private final int duration = Integer.getInteger("duration", 30);
+	private final int interval = Integer.getInteger("interval", 0);
+	private final boolean passThrough = Boolean.getBoolean("passthrough");
+	private final int churn = Integer.getInteger("churn", 0);
+	private final int port = Integer.getInteger("port", 18234);
+
+	private final Map<String, ContainerInfo> containerInfos = new HashMap<>();
+	private final BlockingQueue<Event> events = new ArrayBlockingQueue<>(1024);
+	private final List<HttpServer> exporters = new ArrayList<>();
+	private final ExecutorService exporterThreads = Executors.newCachedThreadPool(new ThreadFactoryBuilder()
+			.setNameFormat("fake-exporter-%d")
+				.setDaemon(true)
+				.build());
+
+	public static void main(String[] args) throws Exception {
+		new LoadIt().run();
+		System.exit(0);
+	}
+
+	private void run() throws Exception {
+		startExporters();
+		DockerClient docker = stubDockerClient();
+		KadvisorMetrics metrics = new KadvisorMetrics();
+		WatchedContainerRegistry registry = new WatchedContainerRegistry(docker, LABEL, null, null, metrics, 8, 250);
+		ExporterConnectionPool connectionPool = new ExporterConnectionPool(16, 60000);
+		registry.addListener(connectionPool);
+		registry.addListener(metrics);
+		LabelInterner interner = new LabelInterner();
+		registry.addListener(interner);
+		ExporterScraper scraper = new ExporterScraper(16, connectionPool, 1000, 5000, 9000, true, metrics, interner,
+				new EndpointLimits(100000, 67108864L, 65536));
+		HTTPMetricHandler handler = new HTTPMetricHandler(registry, scraper, passThrough, Collections.emptyList(), metrics);
+		if (interval > 0 && !passThrough)
+			handler.startCollecting(interval, 60000);
+		BoundedHttpServer server = new BoundedHttpServer(new RawHttp(), port, 8, 64, 30000, 10000);
+		server.start(handler::handle);
+		Thread churnThread = churn > 0 ? startChurn() : null;
+
+		System.out.println("Simulating " + containers + " containers with " + series + " series, " + clients + " clients");
+		drive(warmup, null);
+		Report report = new Report();
+		drive(duration, report);
+		report.print();
+
+		if (churnThread != null)
+			churnThread.interrupt();
+		server.stop();
+		handler.stop();
+		scraper.stop();
+		connectionPool.stop();
+		registry.stop();
+		exporters.forEach(exporter -> exporter.stop(0));
+	}
+
+	/**
+	 * Runs the clients for the given number of seconds, recording into the
+	 * report unless it is <code>null</code>.
+	 */
+	private void drive(int seconds, Report report) throws InterruptedException {
+		AtomicBoolean running = new AtomicBoolean(true);
+		List<Thread> threads = new ArrayList<>();
+		if (report != null)
+			report.start();
+		for (int i = 0; i < clients; i++) {
+			LatencyRecorder recorder = new LatencyRecorder();
+			if (report != null)
+				report.recorders.add(recorder);
+			Thread thread = new Thread(() -> {
+				while (running.get())
+					request(recorder);
+			}, "load-client-" + i);
+			thread.start();
+			threads.add(thread);
+		}
+		Thread.sleep(TimeUnit.SECONDS.toMillis(seconds));
+		running.set(false);
+		for (Thread thread : threads)
+			thread.join();
+		if (report != null)
+			report.stop();
+	}
+
+	private void request(LatencyRecorder recorder) {
+		long start = System.nanoTime();
+		try {
+			HttpURLConnection connection = (HttpURLConnection) new URL("http://127.0.0.1:" + port + "/metrics").openConnection();
+			connection.setRequestProperty("Accept-Encoding", "gzip");
+			connection.setReadTimeout(60000);
+			int status = connection.getResponseCode();
+			long bytes = 0;
+			try (InputStream body = status < 400 ? connection.getInputStream() : connection.getErrorStream()) {
+				byte[] buffer = new byte[16 * 1024];
+				int read;
+				while (body != null && (read = body.read(buffer)) > 0)
+					bytes += read;
+			}
+			recorder.record(System.nanoTime() - start, bytes, status == 200);
+		} catch (IOException e) {
+			recorder.record(System.nanoTime() - start, 0, false);
+		}
+	}
+
+	private void startExporters() throws IOException {
+		byte[][] bodies = SyntheticMetrics.exporterBodies(containers, series, 42);
+		for (int i = 0; i < containers; i++) {
+			String ipAddress = "127.0." + (1 + i / 250) + "." + (2 + i % 250);
+			byte[] plain = bodies[i];
+			byte[] gzip = gzip(plain);
+			HttpServer exporter = HttpServer.create(new InetSocketAddress(ipAddress, 9100), 64);
+			exporter.setExecutor(exporterThreads);
+			exporter.createContext("/metrics", exchange -> {
+				try {
+					if (latency > 0)
+						Thread.sleep(latency + ThreadLocalRandom.current().nextInt(latency / 2 + 1));
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				exchange.getRequestBody().close();
+				if (ThreadLocalRandom.current().nextDouble() < failureRate) {
+					exchange.sendResponseHeaders(500, -1);
+					exchange.close();
+					return;
+				}
+				String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+				boolean compress = acceptEncoding != null && acceptEncoding.contains("gzip");
+				byte[] body = compress ? gzip : plain;
+				exchange.getResponseHeaders().set("Content-Type", PrometheusTextFormatParser.CONTENT_TYPE_004);
+				if (compress)
+					exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+				exchange.sendResponseHeaders(200, body.length);
+				try (OutputStream os = exchange.getResponseBody()) {
+					os.write(body);
+				}
+			});
+			exporter.start();
+			exporters.add(exporter);
+			containerInfos.put("load-" + i, containerInfo("load-" + i, ipAddress));
+		}
+	}
+
+	private static byte[] gzip(byte[] plain) throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream(plain.length / 4);
+		try (GZIPOutputStream os = new GZIPOutputStream(bos)) {
+			os.write(plain);
+		}
+		return bos.toByteArray();
+	}
+
+	private static ContainerInfo containerInfo(String id, String ipAddress) {
+		ContainerInfo info = new ContainerInfo();
+		info.id = id;
+		info.name = "/" + id;
+		info.image = "prom/node-exporter";
+		info.config = ContainerConfig.builder()
+			.labels(ImmutableMap.of(LABEL, LABEL))
+				.build;
+		info.state = new ContainerState();
+		info.state.running = true;
+		AttachedNetwork network = new AttachedNetwork();
+		network.ipAddress = ipAddress;
+		info.networkSettings = new NetworkSettings();
+		info.networkSettings.networks = ImmutableMap.of("bridge", network);
+		return info;
+	}
+
+	/**
+	 * @return Docker client answering only the calls of the registry from the
+	 *         simulated containers.
+	 */
+	private DockerClient stubDockerClient() {
+		EventStream eventStream = new EventStream() {
+			private Event next;
+
+			@Override
+			public boolean hasNext() {
+				// blocks like the stream of the daemon
+				try {
+					if (next == null)
+						next = events.take();
+					return true;
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return false;
+				}
+			}
+
+			@Override
+			public Event next() {
+				hasNext();
+				Event event = next;
+				next = null;
+				return event;
+			}
+
+			@Override
+			public void close() {
+			}
+		};
+		return (DockerClient) Proxy.newProxyInstance(DockerClient.class.getClassLoader(), new Class<?>[] { DockerClient.class },
+				(proxy, method, args) -> {
+					switch (method.getName()) {
+					case "listContainers":
+						List<Container> list = new ArrayList<>();
+						containerInfos.keySet().forEach(id -> {
+							Container container = new Container();
+							container.id = id;
+							list.add(container);
+						});
+						return list;
+					case "inspectContainer":
+						return containerInfos.get(args[0]);
+					case "events":
+						return eventStream;
+					case "close":
+						return null;
+					default:
+						throw new UnsupportedOperationException(method.getName());
+					}
+				});
+	}
+
+	/**
+	 * Periodically sends a die event for a random container followed by a
+	 * health status event bringing it back.
+	 */
+	private Thread startChurn() {
+		Thread thread = new Thread(() -> {
+			Random random = new Random(42);
+			try {
+				while (true) {
+					Thread.sleep(churn);
+					String id = "load-" + random.nextInt(containers);
+					events.put(event(id, "die"));
+					Thread.sleep(churn);
+					events.put(event(id, "health_status"));
+				}
+			} catch (InterruptedException e) {
+				// stopped
+			}
+		}, "load-churn");
+		thread.setDaemon(true);
+		thread.start();
+		return thread;
+	}
+
+	private static Event event(String id, String action) {
+		Event event = new Event();
+		event.type = Event.Type.CONTAINER;
+		event.action = action;
+		event.actor = new Event.Actor();
+		event.actor.id = id;
+		event.timeNano = TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis());
+		return event;
+	}
+
+	private static class LatencyRecorder {
+		private long[] latencies = new long[1024];
+		private int count;
+		private long errors;
+		private long bytes;
+
+		void record(long nanos, long bytes, boolean ok) {
+			if (count == latencies.length)
+				latencies = Arrays.copyOf(latencies, count * 2);
+			latencies[count++] = nanos;
+			this.bytes += bytes;
+			if (!ok)
+				errors++;
+		}
+	}
+
+	/**
+	 * Measurements of one run. Allocations are only counted for the threads
+	 * of kadvisor itself, named <code>kadvisor-*</code>, not for the fake
+	 * exporters and clients running in the same JVM. The peak heap is the sum
+	 * of the peaks of the heap pools.
+	 */
+	private static class Report {
+		final List<LatencyRecorder> recorders = Collections.synchronizedList(new ArrayList<>());
+		private final com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		private final Map<Long, Long> allocatedAtStart = new HashMap<>();
+		private long started;
+		private long elapsed;
+		private long allocated;
+		private long peakHeap;
+
+		void start() {
+			System.gc();
+			for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+				if (pool.getType() == MemoryType.HEAP)
+					pool.resetPeakUsage();
+			}
+			kadvisorThreads().forEach(thread -> allocatedAtStart.put(thread.getId(), threads.getThreadAllocatedBytes(thread.getId())));
+			started = System.nanoTime();
+		}
+
+		void stop() {
+			elapsed = System.nanoTime() - started;
+			for (Thread thread : kadvisorThreads()) {
+				long bytes = threads.getThreadAllocatedBytes(thread.getId());
+				if (bytes >= 0)
+					allocated += bytes - allocatedAtStart.getOrDefault(thread.getId(), 0L);
+			}
+			for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+				if (pool.getType() == MemoryType.HEAP)
+					peakHeap += pool.getPeakUsage().getUsed();
+			}
+		}
+
+		private static List<Thread> kadvisorThreads() {
+			List<Thread> kadvisor = new ArrayList<>();
+			for (Thread thread : Thread.getAllStackTraces().keySet()) {
+				if (thread.getName().startsWith("kadvisor-"))
+					kadvisor.add(thread);
+			}
+			return kadvisor;
+		}
+
+		void print() {
+			int count = 0;
+			long errors = 0;
+			long bytes = 0;
+			for (LatencyRecorder recorder : recorders) {
+				count += recorder.count;
+				errors += recorder.errors;
+				bytes += recorder.bytes;
+			}
+			long[] latencies = new long[count];
+			int i = 0;
+			for (LatencyRecorder recorder : recorders) {
+				System.arraycopy(recorder.latencies, 0, latencies, i, recorder.count);
+				i += recorder.count;
+			}
+			Arrays.sort(latencies);
+			double seconds = elapsed / 1e9;
+			System.out.println(String.format("requests      %d (%d failed)", count, errors));
+			System.out.println(String.format("throughput    %.1f req/s, %.1f MB/s", count / seconds, bytes / seconds / 1e6));
+			System.out.println(String.format("latency       p50 %.1f ms, p90 %.1f ms, p99 %.1f ms, max %.1f ms",
+					percentile(latencies, 0.5), percentile(latencies, 0.9), percentile(latencies, 0.99), percentile(latencies, 1)));
+			System.out.println(String.format("allocation    %.1f MB/s (%.1f MB per request)", allocated / seconds / 1e6,
+					count > 0 ? allocated / (double) count / 1e6 : 0));
+			System.out.println(String.format("peak heap     %.1f MB", peakHeap / 1e6));
+		}
+
+		private static double percentile(long[] sorted, double percentile) {
+			if (sorted.length == 0)
+				return 0;
+			int index = (int) Math.ceil(percentile * sorted.length) - 1;
+			return sorted[Math.max(index, 0)] / 1e6;
+		}
+	}
+
+}
@@ -1,20 +1,29 @@
 package net.jzajic.graalvm.kadvisor;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.StringReader;
 import java.io.StringWriter;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import org.junit.Assert;
 import org.junit.Test;
 
+import com.google.common.io.ByteStreams;
 import com.google.common.io.CharStreams;
 import com.google.common.io.Resources;
 
 import io.prometheus.client.Collector.MetricFamilySamples;
+import io.prometheus.client.Collector.MetricFamilySamples.Sample;
+import net.jzajic.graalvm.kadvisor.PrometheusTextTokenizer.Line;
 
 public class PrometheusTextFormatParserTest {
 	
@@ -47,4 +56,169 @@ public class PrometheusTextFormatParserTest {
 		Assert.assertEquals(originalLines.size(), newLines.size());
 	}
 	
+	@Test
+	public void testRelabelTwoContainers() throws IOException {
+		PrometheusTextFormatParser parser = new PrometheusTextFormatParser();
+		List<String> originalLines = Resources.readLines(getClass().getResource("/metrics"), StandardCharsets.UTF_8);
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		Set<String> writtenFamilies = new HashSet<>();
+		parser.relabel(getClass().getResourceAsStream("/metrics"), output, "name=\"a\"".getBytes(StandardCharsets.UTF_8), writtenFamilies);
+		parser.relabel(getClass().getResourceAsStream("/metrics"), output, "name=\"b\"".getBytes(StandardCharsets.UTF_8), writtenFamilies);
+		List<MetricFamilySamples> parsed = parser.parse(new ByteArrayInputStream(output.toByteArray()));
+		long originalSamples = originalLines.stream().filter(line -> !line.startsWith("#")).count();
+		Assert.assertEquals(2 * originalSamples, parsed.stream().mapToInt(family -> family.samples.size()).sum());
+		List<String> newLines = CharStreams.readLines(new StringReader(output.toString("UTF-8")));
+		Assert.assertEquals(originalLines.size() + originalSamples, newLines.size());
+		Assert.assertTrue(newLines.contains("node_cpu_seconds_total{mode=\"idle\",cpu=\"0\",name=\"b\"} 1145.79"));
+		Assert.assertTrue(newLines.contains("go_goroutines{name=\"a\"} 6.0"));
+	}
+	
+	@Test
+	public void testTokenizerCompatibility() throws IOException {
+		List<String> originalLines = Resources.readLines(getClass().getResource("/metrics"), StandardCharsets.UTF_8);
+		List<String> tokenizedSamples = new ArrayList<>();
+		// small buffer, so lines cross buffer boundaries
+		new PrometheusTextTokenizer(16).tokenize(getClass().getResourceAsStream("/metrics"), new SampleLines() {
+			@Override
+			public void sample(Line line) {
+				StringBuilder sample = new StringBuilder(line.name());
+				for (int i = 0; i < line.labelCount(); i++) {
+					sample.append(i == 0 ? '{' : ',').append(line.labelName(i)).append("=\"").append(line.labelValue(i)).append('"');
+				}
+				if (line.hasLabels())
+					sample.append('}');
+				tokenizedSamples.add(sample.append(' ').append(line.value()).toString());
+			}
+		});
+		int sampleNumber = 0;
+		for (String originalLine : originalLines) {
+			if (originalLine.startsWith("#"))
+				continue;
+			int valueStart = originalLine.lastIndexOf(' ');
+			String expected = originalLine.substring(0, valueStart + 1) + Double.parseDouble(originalLine.substring(valueStart + 1));
+			Assert.assertEquals(expected, tokenizedSamples.get(sampleNumber++));
+		}
+		Assert.assertEquals(sampleNumber, tokenizedSamples.size());
+	}
+	
+	@Test
+	public void testParseEscapedLabelsAndTimestamp() {
+		PrometheusTextFormatParser parser = new PrometheusTextFormatParser();
+		String text = "# HELP msdos_file_access_time_seconds Last access \\ time.\n" +
+				"# TYPE msdos_file_access_time_seconds gauge\n" +
+				"msdos_file_access_time_seconds{path=\"C:\\\\DIR\\\\FILE.TXT\",error=\"Cannot find file:\\n\\\"FILE.TXT\\\"\",list=\"a,b\"} 1.458255915e9 1395066363000\n";
+		List<MetricFamilySamples> parsed = parser.parse(new ByteArrayInputStream(text.getBytes(StandardCharsets.UTF_8)));
+		Assert.assertEquals(1, parsed.size());
+		Assert.assertEquals("Last access \\ time.", parsed.get(0).help);
+		Sample sample = parsed.get(0).samples.get(0);
+		Assert.assertEquals("C:\\DIR\\FILE.TXT", sample.labelValues.get(0));
+		Assert.assertEquals("Cannot find file:\n\"FILE.TXT\"", sample.labelValues.get(1));
+		Assert.assertEquals("a,b", sample.labelValues.get(2));
+		Assert.assertEquals(1.458255915e9, sample.value, 0);
+		Assert.assertEquals(Long.valueOf(1395066363000L), sample.timestampMs);
+	}
+	
+	@Test
+	public void testParseDouble() {
+		for (String value : new String[] { "0", "-0", "1", "6.0", "0.05", "1.433048e+06", "3.5e-07", "12288.0",
+				"123456789012345678901234", "1.7976931348623157e308", "4.9e-324", ".5" }) {
+			byte[] bytes = value.getBytes(StandardCharsets.US_ASCII);
+			Assert.assertEquals(value, Double.doubleToLongBits(Double.parseDouble(value)), Double.doubleToLongBits(PrometheusTextTokenizer.parseDouble(bytes, 0, bytes.length)));
+		}
+		byte[] inf = "+Inf".getBytes(StandardCharsets.US_ASCII);
+		Assert.assertEquals(Double.POSITIVE_INFINITY, PrometheusTextTokenizer.parseDouble(inf, 0, inf.length), 0);
+		byte[] nan = "NaN".getBytes(StandardCharsets.US_ASCII);
+		Assert.assertTrue(Double.isNaN(PrometheusTextTokenizer.parseDouble(nan, 0, nan.length)));
+	}
+	
+	@Test
+	public void testCollectInternsAcrossScrapes() {
+		PrometheusTextFormatParser parser = new PrometheusTextFormatParser();
+		Map<String, String> tags = new HashMap<>();
+		tags.put("name", "web");
+		LabelInterner.Table table = new LabelInterner.Table(tags);
+		String first = "# TYPE node_cpu_seconds_total counter\nnode_cpu_seconds_total{cpu=\"0\",mode=\"idle\"} 1\n";
+		String second = "# TYPE node_cpu_seconds_total counter\nnode_cpu_seconds_total{cpu=\"0\",mode=\"idle\"} 2\n";
+		Map<String, MetricFamilySamples> output = new HashMap<>();
+		parser.collect(new ByteArrayInputStream(first.getBytes(StandardCharsets.UTF_8)), output, table);
+		table.endScrape();
+		Sample a = output.get("node_cpu_seconds_total").samples.get(0);
+		output.clear();
+		parser.collect(new ByteArrayInputStream(second.getBytes(StandardCharsets.UTF_8)), output, table);
+		table.endScrape();
+		Sample b = output.get("node_cpu_seconds_total").samples.get(0);
+		Assert.assertEquals(Arrays.asList("cpu", "mode", "name"), b.labelNames);
+		Assert.assertEquals(Arrays.asList("0", "idle", "web"), b.labelValues);
+		Assert.assertEquals(2, b.value, 0);
+		Assert.assertSame(a.name, b.name);
+		Assert.assertSame(a.labelNames, b.labelNames);
+		Assert.assertSame(a.labelValues, b.labelValues);
+		for (int i = 0; i < 4; i++)
+			table.endScrape();
+		Assert.assertEquals(0, table.labelSetCount());
+	}
+	
+	@Test
+	public void testCollectSkipsFilteredFamilies() {
+		PrometheusTextFormatParser parser = new PrometheusTextFormatParser();
+		Map<String, MetricFamilySamples> output = new HashMap<>();
+		parser.collect(getClass().getResourceAsStream("/metrics"), output, new LabelInterner.Table(new HashMap<>()),
+				line -> line.name().startsWith("node_memory_"));
+		Assert.assertFalse(output.isEmpty());
+		Assert.assertTrue(output.containsKey("node_memory_MemFree_bytes"));
+		output.keySet().forEach(name -> Assert.assertTrue(name, name.startsWith("node_memory_")));
+	}
+	
+	@Test
+	public void testCollectTruncatesAtLimits() {
+		PrometheusTextFormatParser parser = new PrometheusTextFormatParser();
+		Map<String, MetricFamilySamples> output = new HashMap<>();
+		try {
+			parser.collect(getClass().getResourceAsStream("/metrics"), output, new LabelInterner.Table(new HashMap<>()), null,
+					new EndpointLimits(10, 0, 0));
+			Assert.fail("Series limit not enforced");
+		} catch (EndpointLimits.LimitExceededException e) {
+			Assert.assertEquals(EndpointLimits.SERIES, e.limit);
+		}
+		Assert.assertEquals(10, output.values().stream().mapToInt(family -> family.samples.size()).sum());
+
+		String longLine = "# TYPE a gauge\na 1\nb{label=\"" + new String(new char[200]).replace('\0', 'x') + "\"} 2\n";
+		output.clear();
+		try {
+			parser.collect(new ByteArrayInputStream(longLine.getBytes(StandardCharsets.UTF_8)), output, new LabelInterner.Table(new HashMap<>()), null,
+					new EndpointLimits(0, 0, 100));
+			Assert.fail("Line length limit not enforced");
+		} catch (EndpointLimits.LimitExceededException e) {
+			Assert.assertEquals(EndpointLimits.LINE_LENGTH, e.limit);
+		}
+		Assert.assertEquals(1, output.get("a").samples.size());
+	}
+	
+	@Test
+	public void testReadBodyTruncatesAtLastLine() throws IOException {
+		byte[] body = "a 1\nb 2\nc 3\n".getBytes(StandardCharsets.UTF_8);
+		List<String> exceeded = new ArrayList<>();
+		ByteArrayInputStream truncated = (ByteArrayInputStream) new EndpointLimits(0, 10, 0).readBody(new ByteArrayInputStream(body), e -> exceeded.add(e.limit));
+		Assert.assertEquals("a 1\nb 2\n", new String(ByteStreams.toByteArray(truncated), StandardCharsets.UTF_8));
+		Assert.assertEquals(Arrays.asList(EndpointLimits.BODY_BYTES), exceeded);
+	}
+	
+	private static abstract class SampleLines implements PrometheusTextTokenizer.Handler {
+		@Override
+		public void help(Line line) {
+		}
+
+		@Override
+		public void type(Line line) {
+		}
+
+		@Override
+		public void comment(Line line) {
+		}
+
+		@Override
+		public void emptyLine() {
+		}
+	}
+	
 }
@@ -0,0 +1,50 @@
+package net.jzajic.graalvm.kadvisor;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import io.prometheus.client.Collector.MetricFamilySamples;
+import io.prometheus.client.Collector.MetricFamilySamples.Sample;
+import io.prometheus.client.Collector.Type;
+
+public class SeriesQueryTest {
+
+	@Test
+	public void testParseSplitsExporterQuery() {
+		SeriesQuery query = SeriesQuery.parse("collect%5B%5D=cpu&name[]=container_memory_rss&container=web&match[]=%7Bname%3D~%22w.*%22%7D");
+		Assert.assertEquals("collect%5B%5D=cpu", query.exporterQuery);
+		Assert.assertTrue(query.isFiltering());
+		Assert.assertTrue(query.acceptsFamily("container_memory_rss"));
+		Assert.assertFalse(query.acceptsFamily("container_memory_cache"));
+		Assert.assertSame(SeriesQuery.ALL, SeriesQuery.parse(null));
+	}
+
+	@Test
+	public void testFilterSamples() {
+		MetricFamilySamples rss = new MetricFamilySamples("container_memory_rss", Type.GAUGE, "", Arrays.asList(
+				new Sample("container_memory_rss", Arrays.asList("name", "image"), Arrays.asList("web", "nginx"), 1),
+				new Sample("container_memory_rss", Arrays.asList("name", "image"), Arrays.asList("db", "postgres"), 2)));
+		MetricFamilySamples cache = new MetricFamilySamples("container_memory_cache", Type.GAUGE, "", Arrays.asList(
+				new Sample("container_memory_cache", Arrays.asList("name", "image"), Arrays.asList("web", "nginx"), 3)));
+		List<MetricFamilySamples> families = Arrays.asList(rss, cache);
+
+		List<MetricFamilySamples> selected = SeriesQuery.parse("match[]=container_memory_rss%7Bimage!~%22post.*%22%7D").filter(families);
+		Assert.assertEquals(1, selected.size());
+		Assert.assertEquals(1, selected.get(0).samples.size());
+		Assert.assertEquals(1, selected.get(0).samples.get(0).value, 0);
+
+		selected = SeriesQuery.parse("container=db").filter(families);
+		Assert.assertEquals(1, selected.size());
+		Assert.assertEquals("container_memory_rss", selected.get(0).name);
+		Assert.assertEquals(2, selected.get(0).samples.get(0).value, 0);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testInvalidSelector() {
+		SeriesQuery.parse("match[]=metric%7Bname%3D%22web%22");
+	}
+
+}
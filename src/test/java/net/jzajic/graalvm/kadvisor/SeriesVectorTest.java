@@ -0,0 +1,126 @@
+package net.jzajic.graalvm.kadvisor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import io.prometheus.client.Collector.MetricFamilySamples;
+import io.prometheus.client.Collector.MetricFamilySamples.Sample;
+import io.prometheus.client.Collector.Type;
+
+public class SeriesVectorTest {
+
+	@Test
+	public void testMinusMatchesLabelsAcrossMetrics() {
+		SeriesIndex index = new SeriesIndex();
+		SeriesVector total = SeriesVector.of(family("node_memory_MemTotal_bytes",
+				sample("node_memory_MemTotal_bytes", 100, "name", "a", "image", "x"),
+				sample("node_memory_MemTotal_bytes", 200, "name", "b", "image", "y")), index);
+		SeriesVector free = SeriesVector.of(family("node_memory_MemFree_bytes",
+				sample("node_memory_MemFree_bytes", 30, "image", "x", "name", "a")), index);
+		SeriesVector usage = total.minus(free, "container_memory_usage_bytes");
+		Assert.assertEquals(2, index.size());
+		Assert.assertEquals(70, usage.get(index.id(Arrays.asList("name", "image"), Arrays.asList("a", "x"))), 0);
+		Assert.assertEquals(200, usage.get(index.id(Arrays.asList("name", "image"), Arrays.asList("b", "y"))), 0);
+		MetricFamilySamples family = usage.toFamily(Type.GAUGE, "help");
+		Assert.assertEquals("container_memory_usage_bytes", family.name);
+		Assert.assertEquals(2, family.samples.size());
+	}
+
+	@Test
+	public void testSumBy() {
+		SeriesIndex index = new SeriesIndex();
+		SeriesVector cpu = SeriesVector.of(family("node_cpu_seconds_total",
+				sample("node_cpu_seconds_total", 1, "cpu", "0", "mode", "idle", "name", "a"),
+				sample("node_cpu_seconds_total", 2, "cpu", "1", "mode", "idle", "name", "a"),
+				sample("node_cpu_seconds_total", 4, "cpu", "0", "mode", "user", "name", "a"),
+				sample("node_cpu_seconds_total", 8, "cpu", "0", "mode", "idle", "name", "b")), index);
+		SeriesVector perMode = cpu.sumBy("cpu_per_mode", "mode", "name");
+		Assert.assertEquals(3, perMode.size());
+		Assert.assertEquals(3, perMode.get(index.id(Arrays.asList("name", "mode"), Arrays.asList("a", "idle"))), 0);
+		Assert.assertEquals(4, perMode.get(index.id(Arrays.asList("name", "mode"), Arrays.asList("a", "user"))), 0);
+		Assert.assertEquals(8, perMode.get(index.id(Arrays.asList("name", "mode"), Arrays.asList("b", "idle"))), 0);
+	}
+
+	@Test
+	public void testCounterDeltaRatio() {
+		CounterDeltas deltas = new CounterDeltas();
+		double[][] scrapes = { { 10, 2, 10 }, { 13, 3, 14 }, { 1, 1, 20 } };
+		double[] expected = { Double.NaN, 5.0 / 8, Double.NaN };
+		for (int i = 0; i < scrapes.length; i++) {
+			SeriesIndex index = new SeriesIndex();
+			SeriesVector cpu = SeriesVector.of(family("node_cpu_seconds_total",
+					sample("node_cpu_seconds_total", scrapes[i][0], "cpu", "0", "mode", "idle", "name", "a"),
+					sample("node_cpu_seconds_total", scrapes[i][1], "cpu", "0", "mode", "user", "name", "a"),
+					sample("node_cpu_seconds_total", scrapes[i][2], "cpu", "1", "mode", "user", "name", "a")), index);
+			SeriesVector busy = cpu.filter("mode", mode -> !mode.equals("idle")).sumWithout("busy", "cpu", "mode");
+			SeriesVector total = cpu.sumWithout("total", "cpu", "mode");
+			SeriesVector ratio = deltas.delta(busy, "busy_increase").divide(deltas.delta(total, "total_increase"), "ratio");
+			int container = index.id(Arrays.asList("name"), Arrays.asList("a"));
+			Assert.assertEquals("Scrape " + i, expected[i], ratio.get(container), 1e-9);
+		}
+	}
+
+	@Test
+	public void testCounterDeltaWithoutUpdateKeepsSeries() {
+		CounterDeltas deltas = new CounterDeltas();
+		SeriesIndex index = new SeriesIndex();
+		deltas.delta(SeriesVector.of(family("busy",
+				sample("busy", 1, "name", "a"),
+				sample("busy", 1, "name", "b")), index), "increase");
+		// collection of container a only
+		index = new SeriesIndex();
+		SeriesVector filtered = deltas.delta(SeriesVector.of(family("busy", sample("busy", 3, "name", "a")), index), "increase", false);
+		Assert.assertEquals(2, filtered.get(index.id(Arrays.asList("name"), Arrays.asList("a"))), 0);
+		index = new SeriesIndex();
+		SeriesVector full = deltas.delta(SeriesVector.of(family("busy",
+				sample("busy", 4, "name", "a"),
+				sample("busy", 5, "name", "b")), index), "increase");
+		Assert.assertEquals(3, full.get(index.id(Arrays.asList("name"), Arrays.asList("a"))), 0);
+		Assert.assertEquals(4, full.get(index.id(Arrays.asList("name"), Arrays.asList("b"))), 0);
+	}
+
+	@Test
+	public void testAggregationRuleKeepsTags() {
+		SeriesIndex index = new SeriesIndex();
+		SeriesVector cpu = SeriesVector.of(family("container_cpu_usage_seconds_total",
+				sample("container_cpu_usage_seconds_total", 1, "cpu", "0", "mode", "idle", "name", "a"),
+				sample("container_cpu_usage_seconds_total", 2, "cpu", "1", "mode", "idle", "name", "a"),
+				sample("container_cpu_usage_seconds_total", 4, "cpu", "0", "mode", "user", "name", "b")), index);
+		Set<String> tags = Collections.singleton("name");
+
+		SeriesVector withoutCpu = AggregationRule.parse("container_cpu_usage_seconds_total:sum without(cpu, name)").apply(cpu, tags);
+		Assert.assertEquals("container_cpu_usage_seconds_total", withoutCpu.name);
+		Assert.assertEquals(2, withoutCpu.size());
+		Assert.assertEquals(3, withoutCpu.get(index.id(Arrays.asList("mode", "name"), Arrays.asList("idle", "a"))), 0);
+
+		SeriesVector total = AggregationRule.parse("container_cpu_usage_seconds_total:sum").apply(cpu, tags);
+		Assert.assertEquals(2, total.size());
+		Assert.assertEquals(4, total.get(index.id(Arrays.asList("name"), Arrays.asList("b"))), 0);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testInvalidAggregationRule() {
+		AggregationRule.parse("container_cpu_usage_seconds_total:avg by(mode)");
+	}
+
+	private static MetricFamilySamples family(String name, Sample... samples) {
+		return new MetricFamilySamples(name, Type.GAUGE, "", Arrays.asList(samples));
+	}
+
+	private static Sample sample(String name, double value, String... labels) {
+		List<String> names = new ArrayList<>();
+		List<String> values = new ArrayList<>();
+		for (int i = 0; i < labels.length; i += 2) {
+			names.add(labels[i]);
+			values.add(labels[i + 1]);
+		}
+		return new Sample(name, names, values, value);
+	}
+
+}
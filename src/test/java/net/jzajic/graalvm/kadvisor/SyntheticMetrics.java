@@ -0,0 +1,118 @@
+package net.jzajic.graalvm.kadvisor;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Exporter responses generated from the node exporter fixture of the tests.
+ * Every container gets its own copy of the fixture with randomized values,
+ * extended with additional CPUs until it has the requested number of series.
+ * The same seed always generates the same bodies.
+ */
+class SyntheticMetrics {
+
+	private static final Pattern SAMPLE_VALUE = Pattern.compile("^([^#\\s][^ ]*(?:\\{[^}]*\\})?) (\\S+)$");
+	private static final String CPU_FAMILY = "node_cpu_seconds_total{";
+	private static final String[] CPU_MODES = { "idle", "iowait", "irq", "nice", "softirq", "steal", "system", "user" };
+
+	private static List<String> fixture;
+
+	/**
+	 * @return One exporter body per container.
+	 */
+	static byte[][] exporterBodies(int containers, int seriesPerContainer, long seed) {
+		Random random = new Random(seed);
+		byte[][] bodies = new byte[containers][];
+		for (int i = 0; i < containers; i++)
+			bodies[i] = exporterBody(seriesPerContainer, random);
+		return bodies;
+	}
+
+	/**
+	 * @return Tags of the i-th container, as built by the registry.
+	 */
+	static Map<String, String> tags(int container) {
+		Map<String, String> tags = new HashMap<>();
+		tags.put("name", "container-" + container);
+		tags.put("image", "registry.example.com/app:1." + container % 10);
+		tags.put("compose_service", "service-" + container % 5);
+		tags.put("compose_project", "project");
+		return tags;
+	}
+
+	private static byte[] exporterBody(int seriesPerContainer, Random random) {
+		List<String> lines = fixture();
+		int fixtureSeries = 0;
+		for (String line : lines) {
+			if (SAMPLE_VALUE.matcher(line).matches())
+				fixtureSeries++;
+		}
+		StringBuilder body = new StringBuilder();
+		int cpus = 0;
+		for (int i = 0; i < lines.size(); i++) {
+			String line = lines.get(i);
+			Matcher matcher = SAMPLE_VALUE.matcher(line);
+			if (!matcher.matches()) {
+				body.append(line).append('\n');
+				continue;
+			}
+			body.append(matcher.group(1)).append(' ').append(randomize(matcher.group(2), random)).append('\n');
+			if (!line.startsWith(CPU_FAMILY))
+				continue;
+			if (line.contains("mode=\"idle\""))
+				cpus++;
+			if (i + 1 == lines.size() || !lines.get(i + 1).startsWith(CPU_FAMILY)) {
+				// more CPUs after the last one of the fixture, keeps the family together
+				for (int series = fixtureSeries; series + CPU_MODES.length <= seriesPerContainer; series += CPU_MODES.length) {
+					for (String mode : CPU_MODES) {
+						body.append(CPU_FAMILY).append("mode=\"").append(mode).append("\",cpu=\"").append(cpus).append("\"} ")
+								.append(random.nextInt(100000000) / 100.0).append('\n');
+					}
+					cpus++;
+				}
+			}
+		}
+		return body.toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static String randomize(String value, Random random) {
+		try {
+			double original = Double.parseDouble(value);
+			if (original == 0 || Double.isNaN(original) || Double.isInfinite(original))
+				return value;
+			return Double.toString(original * (0.5 + random.nextDouble()));
+		} catch (NumberFormatException e) {
+			return value;
+		}
+	}
+
+	private static synchronized List<String> fixture() {
+		if (fixture == null) {
+			try (InputStream stream = SyntheticMetrics.class.getResourceAsStream("/metrics")) {
+				ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+				byte[] buffer = new byte[8192];
+				int read;
+				while ((read = stream.read(buffer)) > 0)
+					bytes.write(buffer, 0, read);
+				List<String> lines = new ArrayList<>();
+				for (String line : new String(bytes.toByteArray(), StandardCharsets.UTF_8).split("\\n"))
+					lines.add(line);
+				fixture = lines;
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+		return fixture;
+	}
+
+}
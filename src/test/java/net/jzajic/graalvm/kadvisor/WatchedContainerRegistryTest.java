@@ -0,0 +1,191 @@
+package net.jzajic.graalvm.kadvisor;
+
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableMap;
+
+import net.jzajic.graalvm.client.DockerClient;
+import net.jzajic.graalvm.client.EventStream;
+import net.jzajic.graalvm.client.messages.AttachedNetwork;
+import net.jzajic.graalvm.client.messages.ContainerConfig;
+import net.jzajic.graalvm.client.messages.ContainerInfo;
+import net.jzajic.graalvm.client.messages.ContainerState;
+import net.jzajic.graalvm.client.messages.Event;
+import net.jzajic.graalvm.client.messages.NetworkSettings;
+import net.jzajic.graalvm.kadvisor.WatchedContainerRegistry.ContainerListener;
+
+public class WatchedContainerRegistryTest {
+
+	private final Map<String, ContainerInfo> containers = new ConcurrentHashMap<>();
+	private final AtomicInteger inspections = new AtomicInteger();
+	private final BlockingQueue<Event> events = new LinkedBlockingQueue<>();
+
+	@Test
+	public void testEventsOfOneContainerAreCoalesced() throws InterruptedException {
+		KadvisorMetrics metrics = new KadvisorMetrics();
+		WatchedContainerRegistry registry = new WatchedContainerRegistry(dockerClient(), "kadvisor", null, null, metrics, 2, 200);
+		BlockingQueue<String> notifications = new LinkedBlockingQueue<>();
+		registry.addListener(new ContainerListener() {
+			@Override
+			public void added(String ipAddress, ContainerInfo info) {
+				notifications.add("added " + ipAddress);
+			}
+
+			@Override
+			public void removed(String ipAddress, ContainerInfo info) {
+				notifications.add("removed " + ipAddress);
+			}
+		});
+		containers.put("web", containerInfo("web", "10.0.0.2"));
+		for (int i = 0; i < 3; i++) {
+			Event event = event("web", "health_status");
+			event.timeNano = TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis());
+			events.add(event);
+		}
+		Assert.assertEquals("added 10.0.0.2", notifications.poll(5, TimeUnit.SECONDS));
+		Assert.assertEquals(1, inspections.get());
+		// one lag per handling, measured from the first event and covering the window
+		Assert.assertEquals(1, sample(metrics, "kadvisor_docker_event_lag_seconds_count"), 0);
+		Assert.assertTrue(sample(metrics, "kadvisor_docker_event_lag_seconds_sum") >= 0.2);
+		Assert.assertEquals(1, registry.endpoints().size());
+
+		// removed by its known address, without inspecting the dead container
+		containers.remove("web");
+		events.add(event("web", "die"));
+		Assert.assertEquals("removed 10.0.0.2", notifications.poll(5, TimeUnit.SECONDS));
+		Assert.assertEquals(1, inspections.get());
+		Assert.assertTrue(registry.endpoints().isEmpty());
+		registry.stop();
+	}
+
+	@Test
+	public void testCoalescedRestartRedeploys() throws InterruptedException {
+		WatchedContainerRegistry registry = new WatchedContainerRegistry(dockerClient(), "kadvisor", null, null, new KadvisorMetrics(), 2, 200);
+		BlockingQueue<String> notifications = new LinkedBlockingQueue<>();
+		registry.addListener(recorder(notifications));
+		containers.put("web", containerInfo("web", "10.0.0.2"));
+		events.add(event("web", "health_status"));
+		Assert.assertEquals("added web 10.0.0.2", notifications.poll(5, TimeUnit.SECONDS));
+		events.add(event("web", "die"));
+		events.add(event("web", "health_status"));
+		Assert.assertEquals("removed web 10.0.0.2", notifications.poll(5, TimeUnit.SECONDS));
+		Assert.assertEquals("added web 10.0.0.2", notifications.poll(5, TimeUnit.SECONDS));
+		Assert.assertEquals(1, registry.endpoints().size());
+		registry.stop();
+	}
+
+	@Test
+	public void testReusedAddressIsNotRemovedByFormerOwner() throws InterruptedException {
+		WatchedContainerRegistry registry = new WatchedContainerRegistry(dockerClient(), "kadvisor", null, null, new KadvisorMetrics(), 2, 50);
+		BlockingQueue<String> notifications = new LinkedBlockingQueue<>();
+		registry.addListener(recorder(notifications));
+		containers.put("a", containerInfo("a", "10.0.0.2"));
+		events.add(event("a", "health_status"));
+		Assert.assertEquals("added a 10.0.0.2", notifications.poll(5, TimeUnit.SECONDS));
+		// a restarted elsewhere, b got its address before the die of a is handled
+		containers.put("a", containerInfo("a", "10.0.0.3"));
+		containers.put("b", containerInfo("b", "10.0.0.2"));
+		events.add(event("b", "health_status"));
+		Assert.assertEquals("removed a 10.0.0.2", notifications.poll(5, TimeUnit.SECONDS));
+		Assert.assertEquals("added b 10.0.0.2", notifications.poll(5, TimeUnit.SECONDS));
+		events.add(event("a", "die"));
+		Assert.assertNull(notifications.poll(500, TimeUnit.MILLISECONDS));
+		Assert.assertEquals(1, registry.endpoints().size());
+		Assert.assertEquals("10.0.0.2", registry.endpoints().get(0).ipAddress);
+		registry.stop();
+	}
+
+	private static double sample(KadvisorMetrics metrics, String name) {
+		return metrics.collectAll().stream()
+				.flatMap(family -> family.samples.stream())
+					.filter(sample -> sample.name.equals(name))
+					.findFirst()
+					.get().value;
+	}
+
+	private static ContainerListener recorder(BlockingQueue<String> notifications) {
+		return new ContainerListener() {
+			@Override
+			public void added(String ipAddress, ContainerInfo info) {
+				notifications.add("added " + info.id + " " + ipAddress);
+			}
+
+			@Override
+			public void removed(String ipAddress, ContainerInfo info) {
+				notifications.add("removed " + info.id + " " + ipAddress);
+			}
+		};
+	}
+
+	private DockerClient dockerClient() {
+		EventStream eventStream = new EventStream() {
+			@Override
+			public boolean hasNext() {
+				return true;
+			}
+
+			@Override
+			public Event next() {
+				try {
+					return events.take();
+				} catch (InterruptedException e) {
+					throw new IllegalStateException(e);
+				}
+			}
+
+			@Override
+			public void close() {
+			}
+		};
+		return (DockerClient) Proxy.newProxyInstance(DockerClient.class.getClassLoader(), new Class<?>[] { DockerClient.class },
+				(proxy, method, args) -> {
+					switch (method.getName()) {
+					case "listContainers":
+						return Collections.emptyList();
+					case "inspectContainer":
+						inspections.incrementAndGet();
+						return containers.get(args[0]);
+					case "events":
+						return eventStream;
+					default:
+						throw new UnsupportedOperationException(method.getName());
+					}
+				});
+	}
+
+	private static ContainerInfo containerInfo(String id, String ipAddress) {
+		ContainerInfo info = new ContainerInfo();
+		info.id = id;
+		info.name = "/" + id;
+		info.image = "nginx";
+		info.config = new ContainerConfig();
+		info.config.labels = ImmutableMap.of("kadvisor", "kadvisor");
+		info.state = new ContainerState();
+		info.state.running = true;
+		AttachedNetwork network = new AttachedNetwork();
+		network.ipAddress = ipAddress;
+		info.networkSettings = new NetworkSettings();
+		info.networkSettings.networks = ImmutableMap.of("bridge", network);
+		return info;
+	}
+
+	private static Event event(String id, String action) {
+		Event event = new Event();
+		event.type = Event.Type.CONTAINER;
+		event.action = action;
+		event.actor = new Event.Actor();
+		event.actor.id = id;
+		return event;
+	}
+
+}